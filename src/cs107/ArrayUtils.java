@@ -264,6 +264,7 @@ public final class ArrayUtils {
             assert input[i] != null;
             assert input[0].length == input[i].length;
         }
+        QOIEvent event = QOIEvent.start("ArrayUtils.imageToChannels");
         byte[][] convert = new byte[input.length * input[0].length][4];
         int var = 0;
         for (int i = 0; i < input.length; ++i) {
@@ -276,9 +277,36 @@ public final class ArrayUtils {
                 var = var + 1;
             }
         }
+        event.finish(input[0].length, input.length, 4, 4L * convert.length);
         return convert;
     }
 
+    /**
+     * Store the rows of a 2-dim integer array one after the other in a 1-dim array
+     *
+     * @param input (int[][]) - image data
+     * @return (int[]) - the rows of input, from the first to the last
+     * @throws AssertionError if the input is null
+     *                        or one of the inner arrays of input is null
+     */
+    public static int[] flatten(int[][] input) {
+        assert input != null;
+        long length = 0;
+        for (int[] row : input) {
+            assert row != null;
+            length += row.length;
+        }
+        assert length <= Integer.MAX_VALUE - 8;
+
+        int[] flat = new int[(int) length];
+        int position = 0;
+        for (int[] row : input) {
+            System.arraycopy(row, 0, flat, position, row.length);
+            position += row.length;
+        }
+        return flat;
+    }
+
     /**
      * Format a 2-dim byte array where the first dimension is the pixel
      * and the second is the channel to a 2-dim int array where the first
@@ -301,6 +329,7 @@ public final class ArrayUtils {
             assert input[i] != null;
             assert input[i].length == 4;
         }
+        QOIEvent event = QOIEvent.start("ArrayUtils.channelsToImage");
         int[][] convert = new int[height][width];
 
         byte[][] tabargb = new byte[input.length][4];
@@ -318,6 +347,7 @@ public final class ArrayUtils {
                 index++;
             }
         }
+        event.finish(width, height, 4, 4L * input.length);
         return convert;
     }
 }
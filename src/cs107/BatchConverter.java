@@ -0,0 +1,263 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Convert whole directory trees between "PNG" and "Quite Ok Image", several files at the same time.
+ * The biggest images are converted first, and the number of pixels being converted at the same time
+ * is bounded by a budget so that the conversion never runs out of memory.
+ * @apiNote Usage : java cs107.BatchConverter (png2qoi | qoi2png) input_folder output_folder [threads] [budget]
+ * where threads = 0 (the default) means one virtual thread per file when the JVM supports them, and
+ * budget is the maximal number of megapixels in flight (default 256)
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class BatchConverter {
+
+    /**
+     * DO NOT CHANGE THIS, MORE ON THAT IN WEEK 7.
+     */
+    private BatchConverter(){}
+
+    /**
+     * Default number of megapixels in flight
+     */
+    private static final long DEFAULT_BUDGET = 256;
+
+    /**
+     * The semaphore counts blocks of that many pixels
+     */
+    private static final int PIXELS_PER_PERMIT = 1 << 10;
+
+    /**
+     * Direction of a conversion
+     */
+    public enum Direction {
+        PNG_TO_QOI(".png", ".qoi"),
+        QOI_TO_PNG(".qoi", ".png");
+
+        private final String from;
+        private final String to;
+
+        Direction(String from, String to){
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Summary of a batch conversion
+     * @param files (int) - number of converted files
+     * @param failures (int) - number of files that could not be converted
+     * @param bytesRead (long) - total size of the converted files
+     * @param bytesWritten (long) - total size of the generated files
+     * @param pixels (long) - total number of converted pixels
+     * @param nanos (long) - duration of the conversion in nanoseconds
+     */
+    public record Report(int files, int failures, long bytesRead, long bytesWritten, long pixels, long nanos){
+
+        public double filesPerSecond(){
+            return files / seconds();
+        }
+
+        public double megabytesPerSecond(){
+            return (bytesRead + bytesWritten) / 1e6 / seconds();
+        }
+
+        public double megapixelsPerSecond(){
+            return pixels / 1e6 / seconds();
+        }
+
+        private double seconds(){
+            return Math.max(nanos, 1) / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d files (%d failed) in %.3f s : %.1f files/s, %.1f MB/s, %.1f megapixels/s",
+                    files, failures, seconds(), filesPerSecond(), megabytesPerSecond(), megapixelsPerSecond());
+        }
+    }
+
+    /**
+     * Number of pixels of a file whose header cannot be read
+     */
+    static final long UNKNOWN_PIXELS = -1;
+
+    /**
+     * A file to convert
+     * @param pixels (long) - number of pixels of the image, UNKNOWN_PIXELS if its header cannot be read
+     */
+    record Job(Path source, Path target, long pixels){}
+
+    // ============================================================================================
+    // ==================================== BATCH API =============================================
+    // ============================================================================================
+
+    /**
+     * Entry point of the batch converter
+     * @param args (String[]) - direction, input folder, output folder, [threads], [budget in megapixels]
+     */
+    public static void main(String[] args){
+        if (args.length < 3 || args.length > 5){
+            System.err.println("Usage : java cs107.BatchConverter (png2qoi | qoi2png) input_folder output_folder [threads] [budget]");
+            System.exit(2);
+        }
+        var direction = switch (args[0]){
+            case "png2qoi" -> Direction.PNG_TO_QOI;
+            case "qoi2png" -> Direction.QOI_TO_PNG;
+            default -> Helper.<Direction>fail("Unknown direction : %s", args[0]);
+        };
+        var threads = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        var budget = (args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_BUDGET) * 1_000_000;
+        var report = convert(Path.of(args[1]), Path.of(args[2]), direction, threads, budget);
+        System.out.println(report);
+    }
+
+    /**
+     * Convert all the files of a directory tree. The output tree mirrors the input one
+     * @param input (Path) - Folder to convert
+     * @param output (Path) - Folder where to store the converted files
+     * @param direction (Direction) - Direction of the conversion
+     * @param threads (int) - Number of threads, 0 for one virtual thread per file when available
+     * @param budget (long) - Maximal number of pixels being converted at the same time
+     * @return (Report) - Summary of the conversion
+     * @throws AssertionError if one of the parameters is null or invalid
+     */
+    public static Report convert(Path input, Path output, Direction direction, int threads, long budget){
+        assert input != null && output != null && direction != null;
+        assert threads >= 0;
+        assert budget > 0;
+
+        var start = System.nanoTime();
+        var jobs = jobs(input, output, direction);
+        var permits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budget / PIXELS_PER_PERMIT));
+        var admission = new Semaphore(permits);
+
+        var converted = new AtomicInteger();
+        var failures = new AtomicInteger();
+        var bytesRead = new AtomicLong();
+        var bytesWritten = new AtomicLong();
+        var pixels = new AtomicLong();
+
+        var executor = Helper.newExecutor(threads);
+        try {
+            var futures = new ArrayList<Future<?>>(jobs.size());
+            for (var job : jobs){
+                // An image bigger than the budget, or of unknown size, is converted alone
+                var cost = job.pixels == UNKNOWN_PIXELS ? permits
+                        : (int) Math.min(permits, (job.pixels + PIXELS_PER_PERMIT - 1) / PIXELS_PER_PERMIT);
+                admission.acquireUninterruptibly(cost);
+                futures.add(executor.submit(() -> {
+                    try {
+                        pixels.addAndGet(convert(job, direction, bytesRead, bytesWritten));
+                        converted.incrementAndGet();
+                    } catch (Throwable e){
+                        // Even an OutOfMemoryError on one huge image only fails that file
+                        failures.incrementAndGet();
+                        System.err.printf("Cannot convert \"%s\" : %s%n", job.source, e);
+                    } finally {
+                        admission.release(cost);
+                    }
+                }));
+            }
+            for (var future : futures){
+                try {
+                    future.get();
+                } catch (Exception e){
+                    Helper.fail("Batch conversion interrupted : %s", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return new Report(converted.get(), failures.get(), bytesRead.get(), bytesWritten.get(),
+                pixels.get(), System.nanoTime() - start);
+    }
+
+    // ============================================================================================
+
+    /**
+     * List the files to convert, the biggest images first and the ones of unknown size last
+     */
+    static List<Job> jobs(Path input, Path output, Direction direction){
+        try (Stream<Path> files = Files.walk(input)){
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(direction.from))
+                    .map(p -> {
+                        var relative = input.relativize(p).toString();
+                        var name = relative.substring(0, relative.length() - direction.from.length()) + direction.to;
+                        return new Job(p, output.resolve(name), pixelCount(p, direction));
+                    })
+                    .sorted(Comparator.comparingLong(Job::pixels).reversed())
+                    .toList();
+        } catch (IOException e){
+            return Helper.fail("An error occurred while trying to list : \"%s\"%n", input);
+        }
+    }
+
+    /**
+     * Read the dimensions of an image without decoding it
+     * @return (long) - Number of pixels of the image, UNKNOWN_PIXELS if its header cannot be read
+     */
+    private static long pixelCount(Path path, Direction direction){
+        try {
+            if (direction == Direction.QOI_TO_PNG){
+                var header = QOIDecoder.probe(path);
+                return (long) header.width() * header.height();
+            } else {
+                try (var input = ImageIO.createImageInputStream(path.toFile())){
+                    // With no pixel allowed, the size is read and the pixels are never decoded
+                    Helper.readImage(input, 0);
+                }
+            }
+            return UNKNOWN_PIXELS;
+        } catch (Helper.ImageSizeException e){
+            return e.pixels();
+        } catch (IOException | RuntimeException e){
+            return UNKNOWN_PIXELS;
+        }
+    }
+
+    /**
+     * Convert one file. The counters are only updated once the file is converted
+     * @return (long) - Number of converted pixels
+     * @throws IOException if the file cannot be read, decoded or written
+     */
+    private static long convert(Job job, Direction direction, AtomicLong bytesRead, AtomicLong bytesWritten)
+            throws IOException {
+        var size = Files.size(job.source);
+        long pixels;
+        if (direction == Direction.PNG_TO_QOI){
+            var image = Helper.readFlatImage(job.source.toString());
+            Files.createDirectories(job.target.getParent());
+            try (var output = Helper.openWrite(job.target)){
+                QOIEncoder.qoiFile(image, output);
+            }
+            pixels = (long) image.width() * image.height();
+        } else {
+            var image = QOIReader.readFlatImage(job.source);
+            Files.createDirectories(job.target.getParent());
+            Helper.writeImage(job.target, image);
+            pixels = (long) image.width() * image.height();
+        }
+        bytesRead.addAndGet(size);
+        bytesWritten.addAndGet(Files.size(job.target));
+        return pixels;
+    }
+
+}
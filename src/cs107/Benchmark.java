@@ -0,0 +1,270 @@
+package cs107;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Micro-benchmarks of the encoder, the decoder and the ArrayUtils conversions.
+ * Each kernel is warmed up, then timed over enough iterations to last a given time.
+ * The suite runs over the images of "references/" and over synthetic images of several sizes,
+ * and reports the time per pixel, the throughput and the memory allocated per operation.
+ * @apiNote Usage : java cs107.Benchmark [milliseconds per measure] [synthetic sizes ...]
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class Benchmark {
+
+    /**
+     * DO NOT CHANGE THIS, MORE ON THAT IN WEEK 7.
+     */
+    private Benchmark(){}
+
+    /**
+     * Images of the reference corpus
+     */
+    private static final String[] CORPUS = {"beach", "cube", "dice", "EPFL", "random"};
+
+    /**
+     * Default sides of the synthetic square images
+     */
+    private static final int[] SIZES = {256, 1024, 2048};
+
+    /**
+     * Results of the measured operations end up here, so that the JIT cannot remove them
+     */
+    private static volatile int sink;
+
+    /**
+     * Result of one measure
+     * @param kernel (String) - measured operation
+     * @param input (String) - name of the input
+     * @param pixels (long) - number of pixels processed by one operation
+     * @param bytes (long) - number of bytes read or produced by one operation (encoded size)
+     * @param nanos (double) - average duration of one operation in nanoseconds
+     * @param allocated (double) - average memory allocated by one operation in bytes, NaN if unknown
+     */
+    public record Result(String kernel, String input, long pixels, long bytes, double nanos, double allocated){
+
+        public double nanosPerPixel(){
+            return nanos / pixels;
+        }
+
+        public double megapixelsPerSecond(){
+            return pixels * 1e3 / nanos;
+        }
+
+        public double megabytesPerSecond(){
+            return bytes * 1e3 / nanos;
+        }
+
+        public double allocationRate(){
+            return allocated * 1e3 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-30s %-14s %10.2f ns/px %9.1f Mpx/s %9.1f MB/s %12.0f B/op %9.1f MB/s alloc",
+                    kernel, input, nanosPerPixel(), megapixelsPerSecond(), megabytesPerSecond(), allocated, allocationRate());
+        }
+    }
+
+    /**
+     * Sizes of the encodings of one image
+     * @param input (String) - name of the image
+     * @param png (long) - size of the "PNG" file
+     * @param qoi (long) - size of the "Quite Ok Image" file
+     * @param archive (long) - size of the archived "Quite Ok Image" file
+     */
+    public record Ratio(String input, long png, long qoi, long archive){
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-14s png %10d B   qoi %10d B (%6.1f%%)   qoiz %10d B (%6.1f%%)",
+                    input, png, qoi, Main.ratio((int) png, (int) qoi), archive, Main.ratio((int) png, (int) archive));
+        }
+    }
+
+    // ============================================================================================
+    // ================================== BENCHMARK API ===========================================
+    // ============================================================================================
+
+    /**
+     * Run the whole suite and print the results in the terminal
+     * @param args (String[]) - [milliseconds per measure] [synthetic sizes ...]
+     */
+    public static void main(String[] args){
+        var millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        var sizes = SIZES;
+        if (args.length > 1){
+            sizes = new int[args.length - 1];
+            for (var i = 1; i < args.length; ++i){
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        for (var result : run(millis, sizes)){
+            System.out.println(result);
+        }
+        for (var ratio : ratios(QOIArchive.DEFAULT_LEVEL)){
+            System.out.println(ratio);
+        }
+    }
+
+    /**
+     * Run the whole suite
+     * @param millis (long) - Duration of each measure in milliseconds (the warm up lasts as long)
+     * @param sizes (int[]) - Sides of the synthetic square images
+     * @return (List of Result) - One result per kernel and input
+     */
+    public static List<Result> run(long millis, int... sizes){
+        var results = new ArrayList<Result>();
+        for (var name : CORPUS){
+            var path = "references/" + name + ".png";
+            var image = Helper.readImage(path);
+            results.add(measure("Helper.readImage", name, pixels(image), Helper.read(path).length, millis,
+                    () -> Helper.readImage(path)));
+            results.addAll(suite(name, image, millis));
+        }
+        for (var size : sizes){
+            results.addAll(suite(size + "x" + size, synthetic(size, size), millis));
+        }
+        new File("res", "benchmark.png").delete();
+        return results;
+    }
+
+    /**
+     * Compare the sizes of the images of the corpus as "PNG", "Quite Ok Image" and archived "Quite Ok Image"
+     * @param level (int) - Deflate level of the archives
+     * @return (List of Ratio) - One ratio per image
+     */
+    public static List<Ratio> ratios(int level){
+        var ratios = new ArrayList<Ratio>();
+        for (var name : CORPUS){
+            var png = Helper.read("references/" + name + ".png");
+            var qoi = QOIEncoder.qoiFile(Helper.readImage("references/" + name + ".png"));
+            ratios.add(new Ratio(name, png.length, qoi.length, QOIArchive.compress(qoi, level).length));
+        }
+        return ratios;
+    }
+
+    /**
+     * Measure an operation
+     * @param kernel (String) - Name of the operation
+     * @param input (String) - Name of the input
+     * @param pixels (long) - Number of pixels processed by one operation
+     * @param bytes (long) - Number of bytes read or produced by one operation
+     * @param millis (long) - Duration of the measure in milliseconds (the warm up lasts as long)
+     * @param operation (Supplier) - The operation
+     * @return (Result) - The measure
+     */
+    public static Result measure(String kernel, String input, long pixels, long bytes, long millis, Supplier<?> operation){
+        assert kernel != null && input != null && operation != null;
+        assert millis > 0;
+
+        iterate(operation, millis);
+        var allocatedBefore = allocatedBytes();
+        var start = System.nanoTime();
+        var iterations = iterate(operation, millis);
+        var nanos = System.nanoTime() - start;
+        var allocated = allocatedBytes() - allocatedBefore;
+        return new Result(kernel, input, pixels, bytes, (double) nanos / iterations,
+                allocatedBefore < 0 ? Double.NaN : (double) allocated / iterations);
+    }
+
+    // ============================================================================================
+
+    private static List<Result> suite(String name, Helper.Image image, long millis){
+        var results = new ArrayList<Result>();
+        var pixels = pixels(image);
+        var height = image.data().length;
+        var width = image.data()[0].length;
+        var channels = ArrayUtils.imageToChannels(image.data());
+        var data = QOIEncoder.encodeData(image.data());
+        var file = QOIEncoder.qoiFile(image);
+        var archive = QOIArchive.compress(file);
+
+        results.add(measure("ArrayUtils.imageToChannels", name, pixels, 4 * pixels, millis,
+                () -> ArrayUtils.imageToChannels(image.data())));
+        results.add(measure("ArrayUtils.channelsToImage", name, pixels, 4 * pixels, millis,
+                () -> ArrayUtils.channelsToImage(channels, height, width)));
+        results.add(measure("QOIEncoder.encodeData[byte]", name, pixels, data.length, millis,
+                () -> QOIEncoder.encodeData(channels)));
+        results.add(measure("QOIEncoder.encodeData[int]", name, pixels, data.length, millis,
+                () -> QOIEncoder.encodeData(image.data())));
+        results.add(measure("QOIEncoder.qoiFile", name, pixels, file.length, millis,
+                () -> QOIEncoder.qoiFile(image)));
+        results.add(measure("QOIDecoder.decodeData", name, pixels, data.length, millis,
+                () -> QOIDecoder.decodeData(data, width, height)));
+        results.add(measure("QOIDecoder.decodePixels", name, pixels, data.length, millis,
+                () -> QOIDecoder.decodePixels(data, width, height)));
+        results.add(measure("QOIDecoder.decodeQoiFile", name, pixels, file.length, millis,
+                () -> QOIDecoder.decodeQoiFile(file)));
+        results.add(measure("QOIDecoder.decodeQoiFileFlat", name, pixels, file.length, millis,
+                () -> QOIDecoder.decodeQoiFileFlat(file)));
+        results.add(measure("QOIArchive.compress", name, pixels, archive.length, millis,
+                () -> QOIArchive.compress(file)));
+        results.add(measure("QOIDecoder.decodeQoiFileFlat[z]", name, pixels, archive.length, millis,
+                () -> QOIDecoder.decodeQoiFileFlat(archive)));
+        results.add(measure("Helper.writeImage", name, pixels, 4 * pixels, millis, () -> {
+            Helper.writeImage("benchmark.png", image);
+            return image;
+        }));
+        return results;
+    }
+
+    /**
+     * Build a synthetic image mixing flat areas, gradients and noise,
+     * so that every kind of chunk shows up in its encoding
+     */
+    private static Helper.Image synthetic(int width, int height){
+        var random = new Random(107);
+        var data = new int[height][width];
+        for (var y = 0; y < height; ++y){
+            for (var x = 0; x < width; ++x){
+                var area = ((x / 64) + (y / 64)) % 4;
+                data[y][x] = switch (area){
+                    case 0 -> 0xFF_20_40_60;
+                    case 1 -> 0xFF_00_00_00 | (x & 0xFF) << 16 | (y & 0xFF) << 8 | ((x + y) & 0xFF);
+                    case 2 -> 0xFF_00_00_00 | random.nextInt(1 << 24);
+                    default -> random.nextInt();
+                };
+            }
+        }
+        return Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+    }
+
+    private static long pixels(Helper.Image image){
+        return (long) image.data().length * image.data()[0].length;
+    }
+
+    /**
+     * Run the operation again and again during the given time
+     * @return (long) - Number of runs
+     */
+    private static long iterate(Supplier<?> operation, long millis){
+        var end = System.nanoTime() + millis * 1_000_000;
+        long iterations = 0;
+        do {
+            sink ^= System.identityHashCode(operation.get());
+            ++iterations;
+        } while (System.nanoTime() < end);
+        return iterations;
+    }
+
+    /**
+     * @return (long) - Memory allocated by the current thread so far, or -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes(){
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()){
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
@@ -1,12 +1,28 @@
 package cs107;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Helper class. This class contains all the methods considered to be useful
@@ -61,6 +77,242 @@ public final class Helper {
         }
     }
 
+    /**
+     * Image whose pixels are stored in one array : row y starts at data[offset + y * stride].
+     * Several images can share the same array (see crop), and the hash of the pixels
+     * is computed once, the first time it is needed : the pixels must not be changed once the image is shared
+     * or used as a key. The decoders always hand out arrays of their own (see QOICodec::decodeInto to reuse one).
+     * The accessors have the names of the components of a record, like Image.
+     */
+    public static final class FlatImage {
+
+        private final int[] data;
+        private final int offset;
+        private final int width;
+        private final int height;
+        private final int stride;
+        private final byte channels;
+        private final byte color_space;
+
+        /**
+         * Hash of the pixels, 0 until it is computed
+         */
+        private int hash;
+
+        /**
+         * true if the hash of the pixels was computed and is 0
+         */
+        private boolean hashIsZero;
+
+        /**
+         * @param data (int[]) - ARGB stored pixels, row after row
+         * @param width (int) - width of the image
+         * @param height (int) - height of the image
+         * @param channels (byte) - number of channels
+         * @param color_space (byte) - color space
+         */
+        public FlatImage(int[] data, int width, int height, byte channels, byte color_space){
+            this(data, 0, width, height, width, channels, color_space);
+        }
+
+        /**
+         * @param data (int[]) - ARGB stored pixels
+         * @param offset (int) - index in data of the first pixel of the first row
+         * @param width (int) - width of the image
+         * @param height (int) - height of the image
+         * @param stride (int) - distance in data between the beginnings of two consecutive rows
+         * @param channels (byte) - number of channels
+         * @param color_space (byte) - color space
+         */
+        public FlatImage(int[] data, int offset, int width, int height, int stride, byte channels, byte color_space){
+            assert data != null;
+            assert width > 0 && height > 0;
+            assert stride >= width && offset >= 0;
+            assert offset + (long) (height - 1) * stride + width <= data.length;
+            this.data = data;
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.channels = channels;
+            this.color_space = color_space;
+        }
+
+        /**
+         * Copy the pixels of an image in one array
+         * @param image (Image) - image to copy
+         * @return (FlatImage) - the same image, stored in one array
+         */
+        public static FlatImage of(Image image){
+            assert image != null;
+            var rows = image.data;
+            var width = rows[0].length;
+            var data = new int[Math.multiplyExact(width, rows.length)];
+            for (var y = 0; y < rows.length; ++y){
+                assert rows[y].length == width;
+                System.arraycopy(rows[y], 0, data, y * width, width);
+            }
+            return new FlatImage(data, width, rows.length, image.channels, image.color_space);
+        }
+
+        /**
+         * @return (Image) - a copy of this image, one array per row
+         */
+        public Image toImage(){
+            var rows = new int[height][];
+            for (var y = 0; y < height; ++y){
+                var start = offset + y * stride;
+                rows[y] = Arrays.copyOfRange(data, start, start + width);
+            }
+            return new Image(rows, channels, color_space);
+        }
+
+        /**
+         * A rectangle of this image, sharing its pixels
+         * @param x (int) - column of the top left pixel of the rectangle
+         * @param y (int) - row of the top left pixel of the rectangle
+         * @param width (int) - width of the rectangle
+         * @param height (int) - height of the rectangle
+         * @return (FlatImage) - the rectangle
+         */
+        public FlatImage crop(int x, int y, int width, int height){
+            assert x >= 0 && y >= 0 && width > 0 && height > 0;
+            assert x + width <= this.width && y + height <= this.height;
+            return new FlatImage(data, offset + y * stride + x, width, height, stride, channels, color_space);
+        }
+
+        /**
+         * @return (FlatImage) - this image if its rows follow each other in data from index 0,
+         * a copy where they do otherwise
+         */
+        public FlatImage compact(){
+            if (isCompact()){
+                return this;
+            }
+            var copy = new int[width * height];
+            for (var y = 0; y < height; ++y){
+                System.arraycopy(data, offset + y * stride, copy, y * width, width);
+            }
+            return new FlatImage(copy, width, height, channels, color_space);
+        }
+
+        /**
+         * @return (boolean) - true if the rows follow each other in data from index 0, with nothing after the last one
+         */
+        public boolean isCompact(){
+            return offset == 0 && stride == width && data.length == width * height;
+        }
+
+        /**
+         * @param x (int) - column of the pixel
+         * @param y (int) - row of the pixel
+         * @return (int) - ARGB pixel
+         */
+        public int pixel(int x, int y){
+            assert x >= 0 && x < width && y >= 0 && y < height;
+            return data[offset + y * stride + x];
+        }
+
+        /**
+         * @return (int[]) - ARGB stored pixels, not copied. Row y starts at offset() + y * stride().
+         * They must not be changed once the hash of the image is computed
+         */
+        public int[] data(){
+            return data;
+        }
+
+        /**
+         * @return (int) - index in data() of the first pixel of the first row
+         */
+        public int offset(){
+            return offset;
+        }
+
+        /**
+         * @return (int) - width of the image
+         */
+        public int width(){
+            return width;
+        }
+
+        /**
+         * @return (int) - height of the image
+         */
+        public int height(){
+            return height;
+        }
+
+        /**
+         * @return (int) - distance in data() between the beginnings of two consecutive rows
+         */
+        public int stride(){
+            return stride;
+        }
+
+        /**
+         * @return (byte) - number of channels
+         */
+        public byte channels(){
+            return channels;
+        }
+
+        /**
+         * @return (byte) - color space
+         */
+        public byte color_space(){
+            return color_space;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof FlatImage im){
+                if (width != im.width || height != im.height || channels != im.channels || color_space != im.color_space){
+                    return false;
+                }
+                if (this == im){
+                    return true;
+                }
+                if (hash != 0 && im.hash != 0 && hash != im.hash){
+                    return false;
+                }
+                for (var y = 0; y < height; ++y){
+                    var a = offset + y * stride;
+                    var b = im.offset + y * im.stride;
+                    if (!Arrays.equals(data, a, a + width, im.data, b, b + width)){
+                        return false;
+                    }
+                }
+                return true;
+            }else
+                return false;
+        }
+
+        @Override
+        public int hashCode() {
+            var h = hash;
+            if (h == 0 && !hashIsZero){
+                h = 1;
+                for (var y = 0; y < height; ++y){
+                    for (int i = offset + y * stride, end = i + width; i < end; ++i){
+                        h = 31 * h + data[i];
+                    }
+                }
+                if (h == 0){
+                    hashIsZero = true;
+                } else {
+                    hash = h;
+                }
+            }
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return "FlatImage[width=" + width + ", height=" + height + ", stride=" + stride
+                    + ", channels=" + channels + ", color_space=" + color_space + "]";
+        }
+    }
+
     // ==================================================================================
     // ========================== IMAGE MANIPULATION METHODS ============================
     // ==================================================================================
@@ -92,17 +344,21 @@ public final class Helper {
      * @return (Image) - The corresponding Image
      */
     public static Image readImage(String path) {
+        var event = QOIEvent.start("Helper.readImage");
         try{
-            var io = ImageIO.read(new File(path));
+            var file = new File(path);
+            var io = ImageIO.read(file);
+            if (io == null){
+                return fail("Unknown image format : \"%s\"%n", path);
+            }
             var width  = io.getWidth();
             var height = io.getHeight();
             var array = new int[height][width];
             for(var x = 0; x < height;++x){
-                for(var y = 0 ;y < width; ++y){
-                    array[x][y] = io.getRGB(y, x);
-                }
+                readRow(io, x, array[x], 0);
             }
             var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+            event.finish(width, height, nbrChannels, file.length());
             return new Image(array, nbrChannels, (byte) 0);
         }catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
@@ -110,28 +366,292 @@ public final class Helper {
 
     }
 
+    /**
+     * Read and decode an image from the disk, storing its pixels in one array.
+     * The image can be one of the standard formats (png, jpeg ...)
+     * @param path (String) - Relative or Absolute Path to the image
+     * @return (FlatImage) - The corresponding Image
+     */
+    public static FlatImage readFlatImage(String path) {
+        var event = QOIEvent.start("Helper.readFlatImage");
+        try{
+            var file = new File(path);
+            var io = ImageIO.read(file);
+            if (io == null){
+                return fail("Unknown image format : \"%s\"%n", path);
+            }
+            var image = toFlatImage(io);
+            event.finish(image.width, image.height, image.channels, file.length());
+            return image;
+        }catch (IOException e){
+            return fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Thrown by readImage when the image has more pixels than allowed, before its pixels are decoded
+     */
+    static final class ImageSizeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int width;
+
+        private final int height;
+
+        ImageSizeException(int width, int height, long maxPixels){
+            super(String.format(Locale.ROOT, "Image of %dx%d pixels, at most %d allowed", width, height, maxPixels));
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return (long) - Number of pixels of the rejected image
+         */
+        long pixels(){
+            return (long) width * height;
+        }
+    }
+
+    /**
+     * Decode an image in a standard format (png, jpeg ...), its size being checked before its pixels are decoded
+     * @param stream (ImageInputStream) - Where to read the image, not closed
+     * @param maxPixels (long) - Maximal number of pixels of the image, 0 to only read its size
+     * @return (BufferedImage) - The decoded image
+     * @throws ImageSizeException if the image has more than maxPixels pixels
+     * @throws IOException if the format is unknown or the image cannot be read
+     */
+    static BufferedImage readImage(ImageInputStream stream, long maxPixels) throws IOException {
+        var readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()){
+            throw new IOException("Unknown image format");
+        }
+        var reader = readers.next();
+        try {
+            reader.setInput(stream, true, true);
+            var width = reader.getWidth(0);
+            var height = reader.getHeight(0);
+            if ((long) width * height > maxPixels){
+                throw new ImageSizeException(width, height, maxPixels);
+            }
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Copy the pixels of an image read by ImageIO in one array
+     * @param io (BufferedImage) - Image to copy
+     * @return (FlatImage) - The corresponding Image
+     */
+    static FlatImage toFlatImage(BufferedImage io){
+        var width  = io.getWidth();
+        var height = io.getHeight();
+        var array = new int[Math.multiplyExact(width, height)];
+        for(var x = 0; x < height; ++x){
+            readRow(io, x, array, x * width);
+        }
+        var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+        return new FlatImage(array, width, height, nbrChannels, (byte) 0);
+    }
+
+    /**
+     * Copy a row of the image as ARGB pixels. The common raster layouts are read directly
+     * from their data buffer, the other ones through the color model of the image.
+     * @param io (BufferedImage) - Image to read
+     * @param y (int) - Index of the row
+     * @param dst (int[]) - Where to store the pixels
+     * @param offset (int) - Index in dst of the first pixel of the row
+     */
+    private static void readRow(BufferedImage io, int y, int[] dst, int offset){
+        var width = io.getWidth();
+        var raster = io.getRaster();
+        var direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && io.getColorModel().getColorSpace().isCS_sRGB();
+        switch (direct ? io.getType() : BufferedImage.TYPE_CUSTOM){
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                var model = (ComponentSampleModel) raster.getSampleModel();
+                var buffer = (DataBufferByte) raster.getDataBuffer();
+                var data = buffer.getData();
+                var bands = model.getBandOffsets();
+                var stride = model.getPixelStride();
+                var p = buffer.getOffset() + y * model.getScanlineStride();
+                var r = bands[0];
+                var g = bands[1];
+                var b = bands[2];
+                if (bands.length == 4){
+                    var a = bands[3];
+                    for (var x = 0; x < width; ++x, p += stride){
+                        dst[offset + x] = (data[p + a] & 0xFF) << 24 | (data[p + r] & 0xFF) << 16
+                                | (data[p + g] & 0xFF) << 8 | (data[p + b] & 0xFF);
+                    }
+                } else {
+                    for (var x = 0; x < width; ++x, p += stride){
+                        dst[offset + x] = 0xFF_00_00_00 | (data[p + r] & 0xFF) << 16
+                                | (data[p + g] & 0xFF) << 8 | (data[p + b] & 0xFF);
+                    }
+                }
+            }
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                var model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                var buffer = (DataBufferInt) raster.getDataBuffer();
+                System.arraycopy(buffer.getData(), buffer.getOffset() + y * model.getScanlineStride(), dst, offset, width);
+                if (io.getType() == BufferedImage.TYPE_INT_RGB){
+                    for (var x = 0; x < width; ++x){
+                        dst[offset + x] |= 0xFF_00_00_00;
+                    }
+                }
+            }
+            default -> io.getRGB(0, y, width, 1, dst, offset, width);
+        }
+    }
+
     /**
      * Write an image as "PNG" in the disk. This function writes to the folder called "res/"
      * @param path (String) - Relative or Absolute path to the image
      * @param image (Image) - Image to store
      */
     public static void writeImage(String path, Image image) {
-        int type = switch (image.channels){
+        writeImage(Path.of(res_folder, path), image);
+    }
+
+    /**
+     * Write an image as "PNG" in the disk. This function writes to the folder called "res/"
+     * @param path (String) - Relative or Absolute path to the image
+     * @param image (FlatImage) - Image to store
+     */
+    public static void writeImage(String path, FlatImage image) {
+        writeImage(Path.of(res_folder, path), image);
+    }
+
+    /**
+     * Write an image as "PNG" in the disk, at the given location
+     * @param path (Path) - Where to write the image
+     * @param image (Image) - Image to store
+     */
+    public static void writeImage(Path path, Image image) {
+        var event = QOIEvent.start("Helper.writeImage");
+        var buffer = newBufferedImage(image.data[0].length, image.data.length, image.channels);
+        for(var x = 0; x < buffer.getHeight(); ++x){
+            writeRow(buffer, x, image.data[x], 0);
+        }
+        writePng(path, buffer);
+        event.finish(buffer.getWidth(), buffer.getHeight(), image.channels, path.toFile().length());
+    }
+
+    /**
+     * Write an image as "PNG" in the disk, at the given location
+     * @param path (Path) - Where to write the image
+     * @param image (FlatImage) - Image to store
+     */
+    public static void writeImage(Path path, FlatImage image) {
+        var event = QOIEvent.start("Helper.writeImage");
+        writePng(path, toBufferedImage(image));
+        event.finish(image.width, image.height, image.channels, path.toFile().length());
+    }
+
+    /**
+     * Wrap an image in an image that ImageIO can write. The pixels are not copied : the data buffer
+     * of the returned image is the array of the FlatImage, so the decoder writes straight into it
+     * @param image (FlatImage) - Image to wrap
+     * @return (BufferedImage) - INT_ARGB image for 4 channels, INT_RGB for 3 channels, sharing the pixels of image
+     */
+    static BufferedImage toBufferedImage(FlatImage image){
+        var masks = switch (image.channels){
+            case 3 -> new int[]{0xFF_00_00, 0xFF_00, 0xFF};
+            case 4 -> new int[]{0xFF_00_00, 0xFF_00, 0xFF, 0xFF_00_00_00};
+            default -> Helper.<int[]>fail("Cannot write this image, image.channels() == %d", image.channels);
+        };
+        var model = masks.length == 4 ? ColorModel.getRGBdefault() : new DirectColorModel(24, masks[0], masks[1], masks[2]);
+        var buffer = new DataBufferInt(image.data, image.data.length - image.offset, image.offset);
+        var raster = Raster.createPackedRaster(buffer, image.width, image.height, image.stride, masks, null);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Create an empty image whose raster can be filled with writeRow
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - number of channels
+     * @return (BufferedImage) - TYPE_3BYTE_BGR image for 3 channels, TYPE_4BYTE_ABGR for 4 channels
+     */
+    private static BufferedImage newBufferedImage(int width, int height, byte channels){
+        int type = switch (channels){
             case 3 -> BufferedImage.TYPE_3BYTE_BGR;
             case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
-            default -> fail("Cannot write this image, image.channels() == %d", image.channels);
+            default -> fail("Cannot write this image, image.channels() == %d", channels);
         };
-        var buffer = new BufferedImage(image.data[0].length, image.data.length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data[x][y]);
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Store a row of ARGB pixels in the image. The common raster layouts are written directly
+     * in their data buffer, the other ones through the color model of the image.
+     * @param io (BufferedImage) - Image to write in
+     * @param y (int) - Index of the row
+     * @param src (int[]) - The pixels
+     * @param offset (int) - Index in src of the first pixel of the row
+     */
+    private static void writeRow(BufferedImage io, int y, int[] src, int offset){
+        var width = io.getWidth();
+        var raster = io.getRaster();
+        var direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && io.getColorModel().getColorSpace().isCS_sRGB();
+        switch (direct ? io.getType() : BufferedImage.TYPE_CUSTOM){
+            case BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR -> {
+                var model = (ComponentSampleModel) raster.getSampleModel();
+                var buffer = (DataBufferByte) raster.getDataBuffer();
+                var data = buffer.getData();
+                var bands = model.getBandOffsets();
+                var stride = model.getPixelStride();
+                var p = buffer.getOffset() + y * model.getScanlineStride();
+                var r = bands[0];
+                var g = bands[1];
+                var b = bands[2];
+                var a = bands.length == 4 ? bands[3] : -1;
+                for (var x = 0; x < width; ++x, p += stride){
+                    var pixel = src[offset + x];
+                    data[p + r] = (byte) (pixel >> 16);
+                    data[p + g] = (byte) (pixel >> 8);
+                    data[p + b] = (byte) pixel;
+                    if (a >= 0){
+                        data[p + a] = (byte) (pixel >>> 24);
+                    }
+                }
             }
+            default -> io.setRGB(0, y, width, 1, src, offset, width);
         }
-        var abs_path = res_folder + File.separator + path;
+    }
+
+    /**
+     * Write the image as "PNG" in the given stream, caching the stream in memory rather than in a temporary file
+     * @param buffer (BufferedImage) - Image to write
+     * @param output (OutputStream) - Where to write the image, not closed
+     * @throws IOException if the stream cannot be written
+     */
+    static void writePng(BufferedImage buffer, OutputStream output) throws IOException {
+        var writers = ImageIO.getImageWritersByFormatName("png");
+        if (!writers.hasNext()){
+            throw new IOException("No PNG writer");
+        }
+        var writer = writers.next();
+        try (var stream = new MemoryCacheImageOutputStream(output)){
+            writer.setOutput(stream);
+            writer.write(buffer);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Write the image as "PNG" at the given location
+     */
+    private static void writePng(Path path, BufferedImage buffer){
         try {
-            ImageIO.write(buffer, "png", new File(abs_path));
+            ImageIO.write(buffer, "png", path.toFile());
         }catch (IOException e){
-            fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
+            fail("An error occurred while trying to write to : \"%s\"%n", path);
         }
     }
 
@@ -158,14 +678,60 @@ public final class Helper {
      * @param content (byte[]) - Content of the file.
      */
     public static void write(String path, byte[] content){
+        var event = QOIEvent.start("Helper.write");
         var abs_path = res_folder + File.separator + path;
         try(var output = new FileOutputStream(abs_path)){
             output.write(content);
+            event.finish(content.length);
         }catch (IOException e){
             fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
         }
     }
 
+    /**
+     * Open a file of the folder called "res/" to write in it. Its previous content is erased
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (FileChannel) - Channel to write in the file, to be closed by the caller
+     */
+    public static FileChannel openWrite(String path){
+        return openWrite(Path.of(res_folder, path));
+    }
+
+    /**
+     * Open a file to write in it. Its previous content is erased
+     * @param path (Path) - Path to the file
+     * @return (FileChannel) - Channel to write in the file, to be closed by the caller
+     */
+    public static FileChannel openWrite(Path path){
+        try {
+            return FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }catch (IOException e){
+            return fail("An error occurred while trying to write to : \"%s\"%n", path);
+        }
+    }
+
+    // ==================================================================================
+    // =============================== CONCURRENCY METHODS ==============================
+    // ==================================================================================
+
+    /**
+     * Create an executor with the given number of platform threads,
+     * or with one virtual thread per task if threads is 0 and the JVM supports them
+     * @param threads (int) - Number of threads, 0 for one virtual thread per task when available
+     * @return (ExecutorService) - The executor, to be shut down by the caller
+     */
+    static ExecutorService newExecutor(int threads){
+        if (threads <= 0){
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e){
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
     // ==================================================================================
     // ============================= ERROR MANAGEMENT METHODS ===========================
     // ==================================================================================
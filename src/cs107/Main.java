@@ -1,6 +1,33 @@
 package cs107;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 /**
  * Main entry point of the program.
@@ -59,6 +86,10 @@ public final class Main {
         assert testQoiOpLuma();
         assert testQoiOpRun();
         assert testEncodeData();
+        assert testEncodeDataPacked();
+        assert testEncodeDataEdges();
+        assert testEncodeDataParallel();
+        assert testQoiFileStreamed();
 
 
         // ========== Test QOIDecoder ==========
@@ -69,6 +100,26 @@ public final class Main {
         assert testDecodeQoiOpLuma();
         assert testDecodeQoiOpRun();
         assert testDecodeData();
+        assert testDecodePixels();
+        assert testDecodeQoiFileRows();
+        assert testQoiStats();
+        assert testDecodeQoiFileChecked();
+        assert testFlatImage();
+        assert testDecodeQoiFileFlat();
+        assert testReadRaster();
+        assert testWriteRaster();
+        assert testQoiReader();
+        assert testQoiReaderMapped();
+        assert testQoiIndex();
+        assert testQoiArchive();
+        assert testProbe();
+        assert testQoiCache();
+        assert testQoiPixels();
+        assert testQoiCodec();
+        assert testBatchConverter();
+        assert testQoiPipeline();
+        assert testQoiEvent();
+        assert testQoiServer();
 
         System.out.println("All the tests passes. Congratulations");
 
@@ -101,11 +152,13 @@ public final class Main {
      */
     public static void pngToQoi(String inputFile, String outputFile){
         // Read a PNG file
-        var inputImage = Helper.readImage(inputFile);
-        // Encode the Image to QOI
-        var outputFileContent = QOIEncoder.qoiFile(inputImage);
-        // Write in binary mode the file content to 'output_file'
-        Helper.write(outputFile, outputFileContent);
+        var inputImage = Helper.readFlatImage(inputFile);
+        // Encode the Image to QOI and stream it in binary mode to 'output_file'
+        try (var output = Helper.openWrite(outputFile)) {
+            QOIEncoder.qoiFile(inputImage, output);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", outputFile);
+        }
     }
 
     /**
@@ -114,10 +167,13 @@ public final class Main {
      * @param outputFile (String) - The path where to store the generated "PNG" Image
      */
     public static void qoiToPng(String inputFile, String outputFile){
-        // Read in binary mode the file 'input_file'
-        var inputFileContent = Helper.read(inputFile);
-        // Decode the file using the 'QOI' decoder
-        var computedImage = QOIDecoder.decodeQoiFile(inputFileContent);
+        // Map the file 'input_file' in memory and decode it using the 'QOI' decoder
+        Helper.FlatImage computedImage = null;
+        try {
+            computedImage = QOIReader.readFlatImage(Path.of(inputFile));
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", inputFile);
+        }
         // Write an image to 'output_file'
         Helper.writeImage(outputFile, computedImage);
     }
@@ -289,6 +345,77 @@ public final class Main {
         return Arrays.equals(expected, encoding);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataPacked(){
+        int[][] pixels = {{0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00},
+                          {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A}};
+        byte[] expected = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] encoding = QOIEncoder.encodeData(pixels);
+        return Arrays.equals(expected, encoding);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataEdges(){
+        // A run of exactly 62, differences wrapping around 0 and 255, a run of 63, an alpha change then an index
+        int[] pixels = new int[62 + 1 + 63 + 1 + 1 + 1];
+        Arrays.fill(pixels, 0, 62, 0xFF_00_00_00);
+        Arrays.fill(pixels, 62, 62 + 1 + 63, 0xFF_FF_FF_FF);
+        pixels[126] = 0xFF_00_00_00;
+        pixels[127] = 0x80_00_00_00;
+        pixels[128] = 0xFF_00_00_00;
+        byte[] expected = {-3, 0b01_01_01_01, -3, -64, 0b01_11_11_11, -1, 0, 0, 0, -128, 53};
+        byte[] encoding = QOIEncoder.encodeData(pixels);
+        return Arrays.equals(expected, encoding)
+                && Arrays.equals(pixels, QOIDecoder.decodePixels(encoding, pixels.length, 1));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataParallel(){
+        // Runs of START_PIXEL, of random pixels and of small gradients, crossing the segment bounds
+        var random = new Random(107);
+        int[] pixels = new int[512 * 512];
+        Arrays.fill(pixels, 0, 1000, 0xFF_00_00_00);
+        int pixel = 0xFF_00_00_00;
+        for (int i = 1000; i < pixels.length; ) {
+            switch (random.nextInt(4)) {
+                case 0 -> pixel = random.nextInt(16) * 0x01_01_01_01;
+                case 1 -> pixel = pixel + 0x00_01_00_01;
+                case 2 -> pixel = random.nextInt();
+                default -> pixel = pixel ^ 0x00_00_01_00;
+            }
+            int length = 1 + (random.nextInt(100) == 0 ? 40_000 : random.nextInt(70));
+            for (int j = 0; j < length && i < pixels.length; ++j) {
+                pixels[i++] = pixel;
+            }
+        }
+        byte[] expected = QOIEncoder.encodeData(pixels);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            return Arrays.equals(expected, QOIEncoder.encodeDataParallel(pixels, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileStreamed(){
+        Helper.Image image = Helper.readImage("references/dice.png");
+        byte[] expected = QOIEncoder.qoiFile(image);
+        try {
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            QOIEncoder.qoiFile(image, streamed);
+            // A buffer holding a single chunk is drained in the channel at almost every write
+            ByteArrayOutputStream drained = new ByteArrayOutputStream();
+            QOIBuffer buffer = new QOIBuffer(Channels.newChannel(drained), 5);
+            QOIEncoder.qoiFile(image, buffer);
+            buffer.flush();
+            return Arrays.equals(expected, streamed.toByteArray()) && Arrays.equals(expected, drained.toByteArray())
+                    && buffer.position() == 0 && buffer.written() == expected.length;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     // ============================================================================================
     // ============================== QOIDecoder examples =========================================
     // ============================================================================================
@@ -360,4 +487,605 @@ public final class Main {
         return Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 4, 2));
     }
 
-}
\ No newline at end of file
+    @SuppressWarnings("unused")
+    private static boolean testDecodePixels(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        int[] expected = {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00,
+                          0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A};
+        return Arrays.equals(expected, QOIDecoder.decodePixels(encoding, 4, 2));
+    }
+
+    private static boolean testDecodeQoiFileRows(){
+        byte[] file = QOIEncoder.qoiFile(Helper.generateImage(new int[][]{
+                {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00},
+                {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A},
+                {0x5A_5A_5A_5A, 0x5A_5A_5A_5A, 0xFF_EE_EC_EE, 0xFF_00_00_00}},
+                QOISpecification.RGBA, QOISpecification.sRGB));
+        int[] expected = {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A};
+        Helper.FlatImage rows = QOIDecoder.decodeQoiFileRows(file, 1, 1);
+        return rows.height() == 1 && Arrays.equals(expected, rows.data());
+    }
+
+    private static boolean testQoiArchive(){
+        Helper.Image image = Helper.generateImage(new int[][]{
+                {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00},
+                {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A}},
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] file = QOIEncoder.qoiFile(image);
+        byte[] archive = QOIArchive.compress(file);
+        return QOIArchive.isArchive(archive) && !QOIArchive.isArchive(file)
+                && Arrays.equals(file, QOIArchive.decompress(archive))
+                && image.equals(QOIDecoder.decodeQoiFile(archive))
+                && testQoiArchiveSize();
+    }
+
+    private static boolean testQoiArchiveSize(){
+        // A file much bigger than its archive, then an archive lying about the size of its file
+        byte[] file = QOIEncoder.qoiFile(new Helper.FlatImage(new int[3000 * 3000], 3000, 3000,
+                QOISpecification.RGBA, QOISpecification.sRGB));
+        byte[] archive = QOIArchive.compress(file);
+        if (!Arrays.equals(file, QOIArchive.decompress(archive)))
+            return false;
+        ByteBuffer.wrap(archive).putInt(QOIArchive.MAGIC.length, Integer.MAX_VALUE - 8);
+        try {
+            QOIArchive.decompress(archive);
+            return false;
+        } catch (RuntimeException e){
+            return true;
+        }
+    }
+
+    private static boolean testProbe(){
+        try {
+            Path root = Files.createTempDirectory("probe");
+            try {
+                byte[] dice = Helper.read("references/dice.qoi");
+                byte[] wide = dice.clone();
+                wide[4] = -128;
+                Files.write(root.resolve("dice.qoi"), dice);
+                Files.write(root.resolve("archived.qoi"), QOIArchive.compress(Helper.read("references/cube.qoi")));
+                Files.write(root.resolve("wide.qoi"), wide);
+                Files.write(root.resolve("garbage.qoi"), new byte[32]);
+                // The width of "wide.qoi" is 2^31 + 640 : it is left out instead of coming back negative
+                Map<Path, QOIDecoder.Header> headers = QOIDecoder.probeAll(root, 2);
+                return headers.size() == 2
+                        && headers.get(root.resolve("dice.qoi")).equals(new QOIDecoder.Header(640, 480,
+                                QOISpecification.RGBA, QOISpecification.sRGB))
+                        && headers.get(root.resolve("archived.qoi")).equals(QOIDecoder.probe(Path.of("references/cube.qoi")));
+            } finally {
+                deleteTree(root);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiStats(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        QOIStats stats = new QOIStats();
+        QOIDecoder.decodePixels(encoding, 4, 2, stats);
+        return stats.pixels() == 8 && stats.bytes() == encoding.length
+                && stats.count(QOIStats.Op.RUN) == 1 && stats.averageRun() == 3
+                && stats.count(QOIStats.Op.DIFF) == 1 && stats.count(QOIStats.Op.INDEX) == 0
+                && stats.count(QOIStats.Op.LUMA) == 2 && stats.bytes(QOIStats.Op.LUMA) == 4
+                && stats.bytes(QOIStats.Op.RGB) == 4 && stats.bytes(QOIStats.Op.RGBA) == 5
+                && testQoiStatsTruncated(encoding);
+    }
+
+    private static boolean testQoiStatsTruncated(byte[] encoding){
+        // The last QOI_OP_RGBA chunk misses its alpha
+        try {
+            new QOIStats().record(encoding, 0, encoding.length - 1, 0);
+            return false;
+        } catch (QOIFormatException e) {
+            return true;
+        }
+    }
+
+    private static boolean testDecodeQoiFileChecked(){
+        Helper.Image image = Helper.generateImage(new int[][]{{0xFF_00_00_00, 0xFF_00_FF_00}},
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] file = QOIEncoder.qoiFile(image);
+        byte[] header = QOIEncoder.qoiHeader(image);
+        // A QOI_OP_LUMA cut after its first byte, then a header claiming 65535 * 65535 pixels
+        byte[] truncated = ArrayUtils.concat(header, new byte[]{-126}, QOISpecification.QOI_EOF);
+        byte[] hostile = file.clone();
+        hostile[6] = hostile[7] = hostile[10] = hostile[11] = -1;
+        int rejected = 0;
+        for (byte[] content : new byte[][]{truncated, hostile}) {
+            try {
+                QOIDecoder.decodeQoiFileChecked(content);
+            } catch (QOIFormatException e) {
+                ++rejected;
+            }
+        }
+        return rejected == 2
+                && Arrays.equals(ArrayUtils.flatten(image.data()), QOIDecoder.decodeQoiFileChecked(file).data());
+    }
+
+    private static boolean testDecodeQoiFileFlat(){
+        byte[] file = Helper.read("references/cube.qoi");
+        byte[] corrupted = file.clone();
+        corrupted[corrupted.length - 1] = 0;
+        try {
+            QOIDecoder.decodeQoiFileFlat(corrupted);
+            return false;
+        } catch (AssertionError e) {
+            return Helper.FlatImage.of(QOIDecoder.decodeQoiFile(file)).equals(QOIDecoder.decodeQoiFileFlat(file));
+        }
+    }
+
+    private static boolean testFlatImage(){
+        Helper.Image image = Helper.generateImage(new int[][]{
+                {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00},
+                {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A},
+                {0x5A_5A_5A_5A, 0x5A_5A_5A_5A, 0xFF_EE_EC_EE, 0xFF_00_00_00}},
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.FlatImage flat = Helper.FlatImage.of(image);
+        Helper.FlatImage crop = flat.crop(1, 1, 3, 2);
+        Helper.FlatImage copy = crop.compact();
+        return image.equals(flat.toImage()) && flat.hashCode() == Arrays.hashCode(ArrayUtils.flatten(image.data()))
+                && crop.stride() == 4 && copy.isCompact() && !crop.isCompact()
+                && crop.equals(copy) && crop.hashCode() == copy.hashCode()
+                && crop.pixel(2, 1) == 0xFF_00_00_00
+                && Arrays.equals(QOIEncoder.qoiFile(copy), QOIEncoder.qoiFile(crop))
+                && Arrays.equals(QOIEncoder.qoiFile(image), QOIEncoder.qoiFile(flat))
+                && testFlatImageHash(copy);
+    }
+
+    private static boolean testFlatImageHash(Helper.FlatImage image){
+        // The hash is computed once, and the same for the same pixels in another array
+        Helper.FlatImage same = new Helper.FlatImage(image.data().clone(), image.width(), image.height(),
+                image.channels(), image.color_space());
+        Map<Helper.FlatImage, String> keys = Map.of(image, "image");
+        return image.hashCode() == image.hashCode() && image.hashCode() == same.hashCode()
+                && "image".equals(keys.get(same));
+    }
+
+    private static boolean testReadRaster(){
+        // The layouts read from their data buffer, then a sub-image and a gray image read through getRGB
+        Random random = new Random(107);
+        BufferedImage[] images = {
+                new BufferedImage(5, 3, BufferedImage.TYPE_3BYTE_BGR),
+                new BufferedImage(5, 3, BufferedImage.TYPE_4BYTE_ABGR),
+                new BufferedImage(5, 3, BufferedImage.TYPE_INT_ARGB),
+                new BufferedImage(5, 3, BufferedImage.TYPE_INT_RGB),
+                new BufferedImage(7, 5, BufferedImage.TYPE_4BYTE_ABGR).getSubimage(1, 2, 5, 3),
+                new BufferedImage(5, 3, BufferedImage.TYPE_BYTE_GRAY)};
+        for (BufferedImage io : images) {
+            for (int y = 0; y < 3; ++y) {
+                for (int x = 0; x < 5; ++x) {
+                    io.setRGB(x, y, random.nextInt());
+                }
+            }
+            int[] expected = io.getRGB(0, 0, 5, 3, null, 0, 5);
+            Helper.FlatImage image = Helper.toFlatImage(io);
+            if (!Arrays.equals(expected, image.data()) || image.channels() != (io.getColorModel().hasAlpha() ? 4 : 3)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean testWriteRaster(){
+        Helper.Image image = Helper.generateImage(new int[][]{
+                {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00},
+                {0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A},
+                {0x5A_5A_5A_5A, 0x5A_5A_5A_5A, 0xFF_EE_EC_EE, 0xFF_00_00_00}},
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.FlatImage flat = Helper.FlatImage.of(image);
+        Helper.FlatImage crop = flat.crop(1, 1, 3, 2);
+        // The wrapped image shares the pixels, with or without a stride
+        BufferedImage wrapped = Helper.toBufferedImage(crop);
+        boolean shared = Arrays.equals(crop.compact().data(), wrapped.getRGB(0, 0, 3, 2, null, 0, 3));
+        // Without alpha channel, the alpha byte of the pixels is ignored
+        Helper.FlatImage opaque = new Helper.FlatImage(crop.compact().data(), 3, 2,
+                QOISpecification.RGB, QOISpecification.sRGB);
+        int[] expected = Arrays.stream(opaque.data()).map(pixel -> pixel | 0xFF_00_00_00).toArray();
+        boolean rgb = Arrays.equals(expected, Helper.toBufferedImage(opaque).getRGB(0, 0, 3, 2, null, 0, 3))
+                && !Helper.toBufferedImage(opaque).getColorModel().hasAlpha();
+        try {
+            // The rows of an Image go through writeRow, the FlatImage through its wrapped array
+            Path rows = Files.createTempFile("rows", ".png");
+            Path wrap = Files.createTempFile("wrap", ".png");
+            try {
+                Helper.writeImage(rows, image);
+                Helper.writeImage(wrap, flat);
+                return shared && rgb && Arrays.equals(Files.readAllBytes(rows), Files.readAllBytes(wrap))
+                        && image.equals(Helper.readImage(rows.toString()));
+            } finally {
+                Files.delete(rows);
+                Files.delete(wrap);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiReader(){
+        byte[] file = Helper.read("references/dice.qoi");
+        Helper.FlatImage expected = QOIDecoder.decodeQoiFileFlat(file);
+        try {
+            // A stream handing out a few bytes at a time, and an archive extracted on the fly
+            InputStream trickle = new FilterInputStream(new ByteArrayInputStream(file)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+            for (QOIReader reader : new QOIReader[]{new QOIReader(trickle),
+                    QOIReader.open(new ByteArrayInputStream(QOIArchive.compress(file)))}) {
+                int[] row = new int[reader.width()];
+                for (int y = 0; y < reader.height(); ++y) {
+                    if (!reader.readRow(row) || !Arrays.equals(row, 0, row.length,
+                            expected.data(), y * expected.width(), (y + 1) * expected.width())) {
+                        return false;
+                    }
+                }
+                if (reader.readRow(row) || reader.width() != 640 || reader.height() != 480) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        // A width too big for an array whatever the budget, then an image bigger than the budget :
+        // both rejected before any allocation
+        byte[] negative = file.clone();
+        negative[4] = -1;
+        byte[][] contents = {negative, file};
+        long[] budgets = {Long.MAX_VALUE, 640L * 479};
+        int rejected = 0;
+        for (int i = 0; i < contents.length; ++i) {
+            try {
+                QOIReader.open(new ByteArrayInputStream(contents[i]), budgets[i]);
+            } catch (IOException e) {
+                ++rejected;
+            }
+        }
+        // Without its end marker, then with a wrong one : the last chunks are never taken for the marker
+        byte[] corrupted = file.clone();
+        corrupted[corrupted.length - 1] = 0;
+        for (byte[] content : new byte[][]{Arrays.copyOf(file, file.length - 8), corrupted}) {
+            try (QOIReader reader = new QOIReader(new ByteArrayInputStream(content))) {
+                reader.skipRows(reader.height());
+            } catch (IOException e) {
+                ++rejected;
+            }
+        }
+        return rejected == 4;
+    }
+
+    private static boolean testQoiReaderMapped(){
+        Path path = Path.of("references/EPFL.qoi");
+        Helper.FlatImage expected = QOIDecoder.decodeQoiFileFlat(Helper.read("references/EPFL.qoi"));
+        try {
+            // Windows of 13 bytes end in the middle of the chunks
+            for (int windowSize : new int[]{13, 4096, 1 << 30}) {
+                try (QOIReader reader = QOIReader.map(path, QOIDecoder.DEFAULT_MAX_PIXELS, windowSize)) {
+                    int[] pixels = new int[reader.width() * reader.height()];
+                    for (int y = 0; y < reader.height(); ++y) {
+                        reader.readRow(pixels, y * reader.width());
+                    }
+                    if (!Arrays.equals(expected.data(), pixels)) {
+                        return false;
+                    }
+                }
+            }
+            Helper.FlatImage rows = QOIReader.readRows(path, 100, 3);
+            boolean same = Arrays.equals(expected.data(), 100 * expected.width(), 103 * expected.width(),
+                    rows.data(), 0, rows.data().length) && expected.equals(QOIReader.readFlatImage(path));
+            // A mapped file cut in the middle of its data, then one with a wrong end marker
+            Path cut = Files.createTempFile("cut", ".qoi");
+            try {
+                Files.write(cut, Arrays.copyOf(Helper.read("references/EPFL.qoi"), 4000));
+                QOIReader.readFlatImage(cut);
+                return false;
+            } catch (EOFException e) {
+                byte[] corrupted = Helper.read("references/EPFL.qoi");
+                corrupted[corrupted.length - 1] = 0;
+                Files.write(cut, corrupted);
+                try {
+                    QOIReader.readFlatImage(cut);
+                    return false;
+                } catch (IOException marker) {
+                    return same;
+                }
+            } finally {
+                Files.delete(cut);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiIndex(){
+        Helper.FlatImage image = new Helper.FlatImage(new int[]{
+                0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00,
+                0xFF_00_FF_00, 0xFF_00_FF_00, 0xFF_64_64_64, 0x5A_5A_5A_5A,
+                0x5A_5A_5A_5A, 0x5A_5A_5A_5A, 0xFF_EE_EC_EE, 0xFF_00_00_00}, 4, 3,
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        QOIBuffer file = new QOIBuffer();
+        QOIIndex index = QOIEncoder.qoiFileIndexed(image, file, 1);
+        byte[] content = file.toArray();
+        return Arrays.equals(content, QOIEncoder.qoiFile(image))
+                && index.equals(QOIIndex.scan(content, 1))
+                && image.equals(QOIDecoder.decodeQoiFileParallel(content, index))
+                && Arrays.equals(Arrays.copyOfRange(image.data(), 8, 12),
+                                 QOIDecoder.decodeQoiFileRows(content, index, 2, 1).data())
+                && testQoiIndexFile(content);
+    }
+
+    private static boolean testQoiIndexFile(byte[] content){
+        QOIIndex index = QOIIndex.scan(content);
+        QOIDecoder.Header header = new QOIDecoder.Header(4, 3, QOISpecification.RGBA, QOISpecification.sRGB);
+        QOIDecoder.Header other = new QOIDecoder.Header(4, 2, QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            Path path = Files.createTempFile("index", ".qoix");
+            try {
+                index.write(path);
+                boolean same = index.equals(QOIIndex.read(path, header)) && index.rows() == QOIIndex.DEFAULT_ROWS;
+                byte[] file = Files.readAllBytes(path);
+                // Another image, a truncated index, then an index of 0 rows per band
+                byte[] noRows = file.clone();
+                Arrays.fill(noRows, 12, 16, (byte) 0);
+                int rejected = 0;
+                for (int test = 0; test < 3; ++test) {
+                    Files.write(path, test == 0 ? file : test == 1 ? Arrays.copyOf(file, file.length - 1) : noRows);
+                    try {
+                        QOIIndex.read(path, test == 0 ? other : header);
+                    } catch (IOException e) {
+                        ++rejected;
+                    }
+                }
+                // A checkpoint of the first band after its first pixel
+                byte[] late = file.clone();
+                late[16 + 15] = 5;
+                Files.write(path, late);
+                try {
+                    QOIIndex.read(path, header);
+                } catch (QOIFormatException e) {
+                    ++rejected;
+                }
+                // The index of another image of the same size, whose chunks are shorter
+                byte[] black = QOIEncoder.qoiFile(new Helper.FlatImage(new int[12], 4, 3,
+                        QOISpecification.RGBA, QOISpecification.sRGB));
+                try {
+                    QOIDecoder.decodeQoiFileRows(black, QOIIndex.scan(content, 1), 2, 1);
+                } catch (QOIFormatException e) {
+                    ++rejected;
+                }
+                return same && rejected == 5;
+            } finally {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiCache(){
+        // Room for the cube (250 x 262) or the dice (640 x 480), not for both
+        QOICache cache = new QOICache(1_300_000);
+        try {
+            Helper.FlatImage cube = cache.get(Path.of("references/cube.qoi"));
+            boolean hit = cube == cache.get(Path.of("references/cube.qoi"));
+            cache.get(Path.of("references/dice.qoi"));
+            boolean evicted = cube != cache.get(Path.of("references/cube.qoi"));
+            QOICache.Stats stats = cache.stats();
+            return hit && evicted && cube.equals(QOIDecoder.decodeQoiFileFlat(Helper.read("references/cube.qoi")))
+                    && stats.hits() == 1 && stats.misses() == 3 && stats.evictions() == 2 && stats.entries() == 1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiPixels(){
+        Helper.FlatImage image = new Helper.FlatImage(new int[]{
+                0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00,
+                0xFF_EE_EC_EE, 0xFF_64_64_64, 0x5A_5A_5A_5A}, 3, 2,
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] file = QOIEncoder.qoiFile(image);
+        QOIPixels pixels = QOIDecoder.decodeQoiFileOffHeap(file);
+        QOIBuffer encoded = new QOIBuffer();
+        QOIEncoder.qoiFile(pixels, encoded);
+        boolean same = image.equals(pixels.toFlatImage()) && Arrays.equals(file, encoded.toArray())
+                && pixels.pixel(2, 1) == 0x5A_5A_5A_5A;
+        pixels.close();
+        try {
+            pixels.pixel(0, 0);
+            return false;
+        } catch (IllegalStateException e) {
+            return same && !pixels.isOpen() && testQoiPixelsLimits() && testQoiPixelsConcurrentClose(file);
+        }
+    }
+
+    private static boolean testQoiPixelsLimits(){
+        try {
+            new QOIPixels(1 << 29, 1, QOISpecification.RGBA, QOISpecification.sRGB).close();
+            return false;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static boolean testQoiPixelsConcurrentClose(byte[] file){
+        // Closing while another thread reads must only make its next access fail
+        QOIPixels pixels = QOIDecoder.decodeQoiFileOffHeap(file);
+        int[] row = new int[pixels.width()];
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    pixels.readRow(1, row, 0);
+                }
+            } catch (IllegalStateException e) {
+                // Closed
+            }
+        });
+        reader.start();
+        pixels.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return !pixels.isOpen();
+    }
+
+    private static boolean testQoiCodec(){
+        Helper.FlatImage image = new Helper.FlatImage(new int[]{
+                0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00,
+                0xFF_EE_EC_EE, 0xFF_64_64_64, 0x5A_5A_5A_5A}, 3, 2,
+                QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] file = QOIEncoder.qoiFile(image);
+        QOICodec codec = new QOICodec();
+        // The second round reuses the buffers of the first one
+        for (int round = 0; round < 2; ++round) {
+            if (!Arrays.equals(file, codec.encode(image).toArray()) || !image.equals(codec.decode(file))) {
+                return false;
+            }
+        }
+        int[] pixels = new int[8];
+        // decode hands out images of their own, decodeInto the array of the caller
+        Helper.FlatImage first = codec.decode(file);
+        return codec.decodeInto(file, pixels).data() == pixels && image.equals(codec.decodeInto(file, pixels))
+                && first.data() != codec.decode(file).data() && image.equals(first);
+    }
+
+
+    private static boolean testBatchConverter(){
+        try {
+            Path input = Files.createTempDirectory("batch");
+            Path output = Files.createTempDirectory("batch");
+            try {
+                Files.createDirectories(input.resolve("nested"));
+                Files.copy(Path.of("references/dice.qoi"), input.resolve("dice.qoi"));
+                Files.copy(Path.of("references/cube.qoi"), input.resolve("nested/cube.qoi"));
+                // A file cut after its header, and one whose header cannot even be read
+                Files.write(input.resolve("cut.qoi"), Arrays.copyOf(Helper.read("references/beach.qoi"), 100));
+                Files.write(input.resolve("garbage.qoi"), new byte[32]);
+                List<BatchConverter.Job> jobs = BatchConverter.jobs(input, output, BatchConverter.Direction.QOI_TO_PNG);
+                BatchConverter.Report report = BatchConverter.convert(input, output,
+                        BatchConverter.Direction.QOI_TO_PNG, 2, 1_000_000);
+                return jobs.size() == 4 && jobs.get(3).pixels() == BatchConverter.UNKNOWN_PIXELS
+                        && jobs.get(0).source().endsWith("cut.qoi") && jobs.get(1).source().endsWith("dice.qoi")
+                        && report.files() == 2 && report.failures() == 2
+                        && report.bytesRead() == Files.size(input.resolve("dice.qoi")) + Files.size(input.resolve("nested/cube.qoi"))
+                        && Arrays.equals(Helper.read("references/dice.png"), Files.readAllBytes(output.resolve("dice.png")))
+                        && Arrays.equals(Helper.read("references/cube.png"),
+                                         Files.readAllBytes(output.resolve("nested/cube.png")));
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiPipeline(){
+        try {
+            Path input = Files.createTempDirectory("pipeline");
+            Path batch = Files.createTempDirectory("pipeline");
+            Path piped = Files.createTempDirectory("pipeline");
+            Path back = Files.createTempDirectory("pipeline");
+            try {
+                Files.createDirectories(input.resolve("nested"));
+                Files.copy(Path.of("references/dice.png"), input.resolve("dice.png"));
+                Files.copy(Path.of("references/cube.png"), input.resolve("nested/cube.png"));
+                Files.write(input.resolve("garbage.png"), new byte[32]);
+                BatchConverter.convert(input, batch, BatchConverter.Direction.PNG_TO_QOI, 2, 1_000_000);
+                QOIPipeline.Report report = QOIPipeline.convert(input, piped, BatchConverter.Direction.PNG_TO_QOI, 2, 1);
+                // Then back to "PNG"
+                QOIPipeline.Report again = QOIPipeline.convert(piped, back, BatchConverter.Direction.QOI_TO_PNG, 2, 1);
+                return report.totals().files() == 2 && report.totals().failures() == 1
+                        && Arrays.equals(Files.readAllBytes(batch.resolve("dice.qoi")), Files.readAllBytes(piped.resolve("dice.qoi")))
+                        && Arrays.equals(Files.readAllBytes(batch.resolve("nested/cube.qoi")),
+                                         Files.readAllBytes(piped.resolve("nested/cube.qoi")))
+                        && again.totals().files() == 2 && again.totals().failures() == 0
+                        && Arrays.equals(Helper.read("references/dice.png"), Files.readAllBytes(back.resolve("dice.png")))
+                        && Arrays.equals(Helper.read("references/cube.png"), Files.readAllBytes(back.resolve("nested/cube.png")));
+            } finally {
+                deleteTree(input);
+                deleteTree(batch);
+                deleteTree(piped);
+                deleteTree(back);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testQoiEvent(){
+        Helper.FlatImage image = new Helper.FlatImage(new int[]{0xFF_00_00_00, 0xFF_00_FF_00, 0xFF_64_64_64,
+                0x5A_5A_5A_5A, 0xFF_00_00_00, 0xFF_EE_EC_EE}, 3, 2, QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            Path dump = Files.createTempFile("events", ".jfr");
+            try (Recording recording = new Recording()){
+                recording.enable("cs107.Stage").withoutThreshold();
+                recording.start();
+                byte[] file = QOIEncoder.qoiFile(image);
+                QOIDecoder.decodeQoiFileFlat(file);
+                recording.stop();
+                recording.dump(dump);
+                List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+                return events.size() == 2
+                        && events.stream().allMatch(e -> e.getInt("width") == 3 && e.getInt("height") == 2
+                                && e.getByte("channels") == QOISpecification.RGBA && e.getLong("bytes") == file.length)
+                        && events.stream().map(e -> e.getString("stage")).sorted().toList()
+                                .equals(List.of("QOIDecoder.decodeQoiFileFlat", "QOIEncoder.qoiFile"));
+            } finally {
+                Files.delete(dump);
+            }
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    private static boolean testQoiServer(){
+        Helper.FlatImage image = new Helper.FlatImage(new int[]{0xFF_00_00_00, 0xFF_00_FF_00, 0xFF_64_64_64,
+                0x5A_5A_5A_5A, 0xFF_00_00_00, 0xFF_EE_EC_EE}, 3, 2, QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.FlatImage tooBig = new Helper.FlatImage(new int[8], 4, 2, QOISpecification.RGBA, QOISpecification.sRGB);
+        // At most the pixels of image
+        try (QOIServer server = QOIServer.start(0, 1, 6)){
+            HttpClient client = HttpClient.newHttpClient();
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(Helper.toBufferedImage(image), "png", png);
+            HttpResponse<byte[]> qoi = post(client, server, "/png2qoi", png.toByteArray());
+            HttpResponse<byte[]> back = post(client, server, "/qoi2png", QOIEncoder.qoiFile(image));
+            HttpResponse<byte[]> garbage = post(client, server, "/qoi2png", new byte[]{'q', 'o', 'i', 'x', 0, 0, 0, 1, 0, 0, 0, 1, 4, 0});
+            HttpResponse<byte[]> big = post(client, server, "/qoi2png", QOIEncoder.qoiFile(tooBig));
+            ByteArrayOutputStream bigPng = new ByteArrayOutputStream();
+            ImageIO.write(Helper.toBufferedImage(tooBig), "png", bigPng);
+            HttpResponse<byte[]> bigImage = post(client, server, "/png2qoi", bigPng.toByteArray());
+            HttpResponse<byte[]> unknown = post(client, server, "/png2qoi", new byte[32]);
+            return qoi.statusCode() == 200 && Arrays.equals(QOIEncoder.qoiFile(image), qoi.body())
+                    && back.statusCode() == 200
+                    && image.equals(Helper.toFlatImage(ImageIO.read(new ByteArrayInputStream(back.body()))))
+                    && garbage.statusCode() == 400 && big.statusCode() == 413
+                    && bigImage.statusCode() == 413 && unknown.statusCode() == 400
+                    && server.stats().requests() == 2 && server.stats().failures() == 4;
+        } catch (IOException | InterruptedException | URISyntaxException e){
+            return false;
+        }
+    }
+
+    private static HttpResponse<byte[]> post(HttpClient client, QOIServer server, String path, byte[] body)
+            throws IOException, InterruptedException, URISyntaxException {
+        URI uri = new URI("http", null, InetAddress.getLoopbackAddress().getHostAddress(), server.port(), path, null, null);
+        HttpRequest request = HttpRequest.newBuilder(uri).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Delete a directory and all its content
+     */
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+}
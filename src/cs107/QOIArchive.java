@@ -0,0 +1,198 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archival container of a "Quite Ok Image" file : the whole file compressed a second time with Deflate.
+ * It trades CPU time, once when archiving and a little at each decoding, for a smaller file.
+ * The decoding methods of QOIDecoder (and QOIReader) recognize the container by its magic
+ * number and unwrap it transparently.
+ * @apiNote Layout : the magic number "qoiz", the size of the "Quite Ok Image" file
+ * (4 bytes, big endian) then the zlib stream of the file
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIArchive {
+
+    /**
+     * DO NOT CHANGE THIS, MORE ON THAT IN WEEK 7.
+     */
+    private QOIArchive(){}
+
+    /**
+     * Magic Number of an archived "Quite Ok Image" file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'z'};
+
+    /**
+     * Size of the header of the container
+     */
+    public static final int HEADER_SIZE = MAGIC.length + 4;
+
+    /**
+     * Compression level used when none is given : archives are written once and read many times
+     */
+    public static final int DEFAULT_LEVEL = Deflater.BEST_COMPRESSION;
+
+    // ============================================================================================
+    // ==================================== ARCHIVE API ===========================================
+    // ============================================================================================
+
+    /**
+     * Archive a "Quite Ok Image" file with the default level
+     * @param file (byte[]) - Content of the "Quite Ok Image" file
+     * @return (byte[]) - Content of the archive
+     * @throws AssertionError if file is null
+     */
+    public static byte[] compress(byte[] file){
+        return compress(file, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Archive a "Quite Ok Image" file
+     * @param file (byte[]) - Content of the "Quite Ok Image" file
+     * @param level (int) - Deflate level, from 0 (no compression) to 9 (best compression)
+     * @return (byte[]) - Content of the archive
+     * @throws AssertionError if file is null, is not a "Quite Ok Image" file or if the level is invalid
+     */
+    public static byte[] compress(byte[] file, int level){
+        assert file != null;
+        assert file.length >= QOISpecification.HEADER_SIZE
+                && Arrays.equals(file, 0, QOISpecification.QOI_MAGIC.length, QOISpecification.QOI_MAGIC, 0, QOISpecification.QOI_MAGIC.length);
+        assert level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
+
+        var deflater = new Deflater(level);
+        try {
+            deflater.setInput(file);
+            deflater.finish();
+            var output = new ByteArrayOutputStream(HEADER_SIZE + file.length / 2);
+            output.writeBytes(MAGIC);
+            output.writeBytes(ByteBuffer.allocate(4).putInt(file.length).array());
+            var chunk = new byte[1 << 16];
+            while (!deflater.finished()){
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param content (byte[]) - Content of a file
+     * @return (boolean) - true if the content starts like an archived "Quite Ok Image" file
+     */
+    public static boolean isArchive(byte[] content){
+        assert content != null;
+        return content.length >= HEADER_SIZE && Arrays.equals(content, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    /**
+     * Extract the "Quite Ok Image" file of an archive
+     * @param archive (byte[]) - Content of the archive
+     * @return (byte[]) - Content of the "Quite Ok Image" file
+     * @throws AssertionError if archive is null or not an archive
+     * @throws RuntimeException if the archive is corrupted
+     */
+    public static byte[] decompress(byte[] archive){
+        var length = size(archive);
+        if (length < 0 || length > Integer.MAX_VALUE - 8){
+            return Helper.fail("Invalid size of archived \"Quite Ok Image\" file : %d", Integer.toUnsignedLong(length));
+        }
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(archive, HEADER_SIZE, archive.length - HEADER_SIZE);
+            // The size comes from the archive itself : the buffer grows with the inflated data
+            // instead of trusting it, up to that size
+            var file = new byte[(int) Math.min(length, Math.max(1 << 16, 4L * archive.length))];
+            var position = 0;
+            while (!inflater.finished()){
+                if (position == file.length && position < length){
+                    file = Arrays.copyOf(file, (int) Math.min(length, 2L * file.length));
+                }
+                // Once the file is complete, only the checksum of the stream is left
+                var inflated = position < length
+                        ? inflater.inflate(file, position, file.length - position)
+                        : inflater.inflate(new byte[1]);
+                if (position == length && inflated > 0 || inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    return Helper.fail("Corrupted archive of \"Quite Ok Image\" file");
+                }
+                position += inflated;
+            }
+            if (position != length){
+                return Helper.fail("Corrupted archive of \"Quite Ok Image\" file");
+            }
+            return file;
+        } catch (DataFormatException e){
+            return Helper.fail("Corrupted archive of \"Quite Ok Image\" file : %s", e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Extract only the first bytes of the "Quite Ok Image" file of an archive, reading no more of the archive than needed
+     * @param channel (FileChannel) - The archive, its position is left untouched
+     * @param length (int) - Number of bytes to extract
+     * @return (byte[]) - The length first bytes of the archived file
+     * @throws IOException if the archive cannot be read, is corrupted or the archived file is shorter than length
+     */
+    static byte[] extractHead(FileChannel channel, int length) throws IOException {
+        var inflater = new Inflater();
+        try {
+            var head = new byte[length];
+            var input = ByteBuffer.allocate(1 << 9);
+            long position = HEADER_SIZE;
+            var done = 0;
+            while (done < length){
+                if (inflater.needsInput()){
+                    var read = channel.read(input.clear(), position);
+                    if (read < 0){
+                        throw new EOFException("Truncated archive of \"Quite Ok Image\" file");
+                    }
+                    position += read;
+                    inflater.setInput(input.array(), 0, read);
+                }
+                var inflated = inflater.inflate(head, done, length - done);
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())){
+                    throw new EOFException("Truncated archive of \"Quite Ok Image\" file");
+                }
+                done += inflated;
+            }
+            return head;
+        } catch (DataFormatException e){
+            throw new IOException("Corrupted archive of \"Quite Ok Image\" file : " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param archive (byte[]) - Content of an archive
+     * @return (int) - Size of the archived "Quite Ok Image" file, as written in the archive
+     * @throws AssertionError if archive is null or not an archive
+     */
+    public static int size(byte[] archive){
+        assert isArchive(archive);
+        return ByteBuffer.wrap(archive, MAGIC.length, 4).getInt();
+    }
+
+    /**
+     * @param content (byte[]) - Content of a "Quite Ok Image" file, archived or not
+     * @return (byte[]) - Content of the "Quite Ok Image" file, content itself when it is not archived
+     * @throws RuntimeException if the archive is corrupted
+     */
+    public static byte[] unwrap(byte[] content){
+        return isArchive(content) ? decompress(content) : content;
+    }
+
+}
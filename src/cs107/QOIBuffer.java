@@ -0,0 +1,254 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Output sink of the "Quite Ok Image" encoder. The chunks are written
+ * straight into one byte array, which grows geometrically when it is full.
+ * A buffer can also be attached to a channel : it is then drained in the channel
+ * when it is full instead of growing, and keeps a constant size.
+ * @apiNote A buffer can be created by the caller (for instance with maxSize)
+ * and reused from one encoding to the next with clear()
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIBuffer {
+
+    /**
+     * Capacity used when nothing better is known
+     */
+    private static final int DEFAULT_CAPACITY = 1 << 12;
+
+    private byte[] array;
+
+    private int position;
+
+    /**
+     * Number of bytes already sent to the channel
+     */
+    private long flushed;
+
+    private final WritableByteChannel channel;
+
+    /**
+     * Create an empty buffer with the given initial capacity
+     * @param capacity (int) - Initial capacity in bytes
+     * @throws AssertionError if the capacity is negative
+     */
+    public QOIBuffer(int capacity){
+        assert capacity >= 0;
+        this.array = new byte[capacity];
+        this.channel = null;
+    }
+
+    /**
+     * Create an empty buffer writing in the given array.
+     * If the array is too small, it is replaced by a bigger copy
+     * @param array (byte[]) - Array to write in
+     * @throws AssertionError if the array is null
+     */
+    public QOIBuffer(byte[] array){
+        assert array != null;
+        this.array = array;
+        this.channel = null;
+    }
+
+    /**
+     * Create an empty buffer draining its content in the given channel when it is full
+     * @param channel (WritableByteChannel) - Where to send the written bytes
+     * @param capacity (int) - Size of the buffer in bytes, at least 5 (the longest chunk)
+     * @throws AssertionError if the channel is null or the capacity too small
+     */
+    public QOIBuffer(WritableByteChannel channel, int capacity){
+        assert channel != null;
+        assert capacity >= 5;
+        this.array = new byte[capacity];
+        this.channel = channel;
+    }
+
+    /**
+     * Create an empty buffer with a default capacity
+     */
+    public QOIBuffer(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    // ==================================================================================
+    // ================================= SIZING METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Worst case size of a "Quite Ok Image" file : every pixel encoded with QOI_OP_RGBA
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @return (int) - Maximal size of the file in bytes
+     * @throws AssertionError if the size cannot be stored in a Java array
+     */
+    public static int maxSize(int width, int height){
+        var size = (long) width * height * 5 + QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8;
+        return (int) size;
+    }
+
+    // ==================================================================================
+    // ================================= WRITING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Write one byte
+     * @param b0 (int) - Byte to write, only the 8 lowest bits are kept
+     */
+    public void write(int b0){
+        ensure(1);
+        array[position++] = (byte) b0;
+    }
+
+    /**
+     * Write two bytes
+     * @param b0 (int) - First byte
+     * @param b1 (int) - Second byte
+     */
+    public void write(int b0, int b1){
+        ensure(2);
+        array[position]     = (byte) b0;
+        array[position + 1] = (byte) b1;
+        position += 2;
+    }
+
+    /**
+     * Write four bytes
+     * @param b0 (int) - First byte
+     * @param b1 (int) - Second byte
+     * @param b2 (int) - Third byte
+     * @param b3 (int) - Fourth byte
+     */
+    public void write(int b0, int b1, int b2, int b3){
+        ensure(4);
+        array[position]     = (byte) b0;
+        array[position + 1] = (byte) b1;
+        array[position + 2] = (byte) b2;
+        array[position + 3] = (byte) b3;
+        position += 4;
+    }
+
+    /**
+     * Write five bytes
+     * @param b0 (int) - First byte
+     * @param b1 (int) - Second byte
+     * @param b2 (int) - Third byte
+     * @param b3 (int) - Fourth byte
+     * @param b4 (int) - Fifth byte
+     */
+    public void write(int b0, int b1, int b2, int b3, int b4){
+        ensure(5);
+        array[position]     = (byte) b0;
+        array[position + 1] = (byte) b1;
+        array[position + 2] = (byte) b2;
+        array[position + 3] = (byte) b3;
+        array[position + 4] = (byte) b4;
+        position += 5;
+    }
+
+    /**
+     * Write all the bytes of the given array
+     * @param bytes (byte[]) - Bytes to write
+     * @throws AssertionError if bytes is null
+     */
+    public void write(byte[] bytes){
+        assert bytes != null;
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, array, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Send the written bytes to the channel and empty the buffer
+     * @throws UncheckedIOException if the channel cannot be written
+     * @throws AssertionError if the buffer is not attached to a channel
+     */
+    public void flush(){
+        assert channel != null;
+        var bytes = ByteBuffer.wrap(array, 0, position);
+        try {
+            while (bytes.hasRemaining()){
+                channel.write(bytes);
+            }
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        flushed += position;
+        position = 0;
+    }
+
+    // ==================================================================================
+    // ================================= ACCESS METHODS =================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Number of bytes currently held by the buffer
+     * (for a buffer attached to a channel, the bytes not flushed yet)
+     */
+    public int position(){
+        return position;
+    }
+
+    /**
+     * @return (long) - Number of bytes written since the creation of the buffer or the last clear(),
+     * flushed or not
+     */
+    public long written(){
+        return flushed + position;
+    }
+
+    /**
+     * @return (byte[]) - The backing array, only its position() first bytes are meaningful
+     */
+    public byte[] array(){
+        return array;
+    }
+
+    /**
+     * Copy the written bytes in an array of the exact size.
+     * @return (byte[]) - The written bytes. If the backing array is exactly full, it is returned without a copy
+     */
+    public byte[] toArray(){
+        return position == array.length ? array : Arrays.copyOf(array, position);
+    }
+
+    /**
+     * Forget the written bytes, the backing array is kept for the next writes
+     */
+    public void clear(){
+        position = 0;
+        flushed = 0;
+    }
+
+    // ============================================================================================
+
+    private void ensure(int length){
+        if (array.length - position < length){
+            if (channel != null){
+                flush();
+                if (array.length >= length){
+                    return;
+                }
+            }
+            grow(length);
+        }
+    }
+
+    private void grow(int length){
+        var needed = (long) position + length;
+        var capacity = Math.max(needed, Math.min((long) array.length * 2, Integer.MAX_VALUE - 8));
+        if (capacity > Integer.MAX_VALUE - 8){
+            Helper.fail("Cannot grow the buffer over %d bytes", Integer.MAX_VALUE - 8);
+        }
+        array = Arrays.copyOf(array, (int) capacity);
+    }
+
+}
@@ -0,0 +1,250 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe cache of decoded "Quite Ok Image" files. An image is identified by its path,
+ * its modification time and its size : a file changed on disk is decoded again.
+ * The least recently used images are evicted when the decoded pixels take more than a budget,
+ * and several threads missing the same image at the same time wait for a single decoding.
+ * @apiNote The cached images are shared between the callers : their pixels must not be modified
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOICache {
+
+    /**
+     * Memory taken by an entry besides its pixels
+     */
+    private static final long ENTRY_OVERHEAD = 128;
+
+    /**
+     * Version of a file on disk
+     */
+    private record Key(Path path, long modified, long size){}
+
+    /**
+     * A decoded image and the version of the file it was decoded from
+     */
+    private record Entry(Key key, Helper.FlatImage image, long weight){}
+
+    /**
+     * Counters of a cache
+     * @param hits (long) - number of images found in the cache
+     * @param misses (long) - number of images decoded
+     * @param collapsed (long) - number of misses that waited for the decoding of another thread
+     * @param evictions (long) - number of images evicted to stay in the budget
+     * @param entries (int) - number of images in the cache
+     * @param bytes (long) - memory taken by the images in the cache
+     */
+    public record Stats(long hits, long misses, long collapsed, long evictions, int entries, long bytes){
+
+        public double hitRate(){
+            var requests = hits + misses + collapsed;
+            return requests == 0 ? 0 : (double) (hits + collapsed) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d hits, %d misses, %d collapsed, %d evictions (hit rate %.1f%%), %d images in %d bytes",
+                    hits, misses, collapsed, evictions, 100 * hitRate(), entries, bytes);
+        }
+    }
+
+    private final long budget;
+
+    private final long maxPixels;
+
+    /**
+     * Entries by path, from the least to the most recently used. Guarded by this
+     */
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Decodings in progress
+     */
+    private final ConcurrentHashMap<Key, CompletableFuture<Helper.FlatImage>> loading = new ConcurrentHashMap<>();
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long collapsed;
+
+    private long evictions;
+
+    /**
+     * Create an empty cache
+     * @param budget (long) - Maximal memory taken by the decoded images, in bytes
+     * @param maxPixels (long) - Maximal number of pixels of an image, see QOIDecoder::decodeQoiFileChecked
+     * @throws AssertionError if the budget or maxPixels is not positive
+     */
+    public QOICache(long budget, long maxPixels){
+        assert budget > 0;
+        assert maxPixels > 0;
+        this.budget = budget;
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Create an empty cache, accepting images of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels
+     * @param budget (long) - Maximal memory taken by the decoded images, in bytes
+     */
+    public QOICache(long budget){
+        this(budget, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    // ============================================================================================
+    // ===================================== CACHE API ============================================
+    // ============================================================================================
+
+    /**
+     * Get the decoded image of a file, decoding it only if it is not in the cache or changed on disk.
+     * An image bigger than the whole budget is decoded but not kept
+     * @param path (Path) - Path to the "Quite Ok Image" file, possibly archived
+     * @return (Helper.FlatImage) - Decoded image, shared with the other callers
+     * @throws IOException if the file cannot be read
+     * @throws QOIFormatException if the file is not a valid "Quite Ok Image" file or is too big
+     */
+    public Helper.FlatImage get(Path path) throws IOException {
+        assert path != null;
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        var key = new Key(path.toAbsolutePath().normalize(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+
+        var cached = lookup(key);
+        if (cached != null){
+            return cached;
+        }
+
+        var decoding = new CompletableFuture<Helper.FlatImage>();
+        var pending = loading.putIfAbsent(key, decoding);
+        if (pending != null){
+            synchronized (this){
+                ++collapsed;
+            }
+            return join(pending);
+        }
+        try {
+            // Another thread may have stored the image between the lookup and now
+            cached = lookup(key);
+            if (cached == null){
+                cached = QOIDecoder.decodeQoiFileChecked(Files.readAllBytes(path), maxPixels);
+                store(key, cached);
+            }
+            decoding.complete(cached);
+            return cached;
+        } catch (Throwable e){
+            // Even an Error must release the threads waiting for this decoding
+            decoding.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, decoding);
+        }
+    }
+
+    /**
+     * Remove the image of a file from the cache
+     * @param path (Path) - Path to the file
+     */
+    public synchronized void invalidate(Path path){
+        assert path != null;
+        var entry = entries.remove(path.toAbsolutePath().normalize());
+        if (entry != null){
+            bytes -= entry.weight;
+        }
+    }
+
+    /**
+     * Remove all the images from the cache. The counters are kept
+     */
+    public synchronized void clear(){
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return (Stats) - The counters of the cache
+     */
+    public synchronized Stats stats(){
+        return new Stats(hits, misses, collapsed, evictions, entries.size(), bytes);
+    }
+
+    /**
+     * @return (long) - Maximal memory taken by the decoded images, in bytes
+     */
+    public long budget(){
+        return budget;
+    }
+
+    // ============================================================================================
+
+    /**
+     * @return (Helper.FlatImage) - The cached image of that version of the file, null if there is none
+     */
+    private synchronized Helper.FlatImage lookup(Key key){
+        var entry = entries.get(key.path);
+        if (entry != null && entry.key.equals(key)){
+            ++hits;
+            return entry.image;
+        }
+        return null;
+    }
+
+    /**
+     * Store a freshly decoded image, then evict the least recently used images over the budget
+     */
+    private synchronized void store(Key key, Helper.FlatImage image){
+        ++misses;
+        var weight = 4L * image.width() * image.height() + ENTRY_OVERHEAD;
+        if (weight > budget){
+            return;
+        }
+        var previous = entries.put(key.path, new Entry(key, image, weight));
+        if (previous != null){
+            bytes -= previous.weight;
+        }
+        bytes += weight;
+        var eldest = entries.values().iterator();
+        while (bytes > budget){
+            bytes -= eldest.next().weight;
+            eldest.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Wait for the decoding of another thread, and throw what it threw
+     */
+    private static Helper.FlatImage join(CompletableFuture<Helper.FlatImage> decoding) throws IOException {
+        try {
+            return decoding.join();
+        } catch (CompletionException e){
+            if (e.getCause() instanceof IOException cause){
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause){
+                throw cause;
+            }
+            if (e.getCause() instanceof Error cause){
+                throw cause;
+            }
+            throw new UncheckedIOException(new IOException(e.getCause()));
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Reusable "Quite Ok Image" encoder and decoder. Unlike the static methods of QOIEncoder and QOIDecoder,
+ * a codec keeps its hash table, its cursor and its output buffer from one call to the next,
+ * so that once its buffer fits the largest file seen, encoding allocates next to nothing.
+ * The decoded images own their pixels : decodeInto lets the caller reuse an array of its own.
+ * The decoding methods check their input like QOIDecoder::decodeQoiFileChecked.
+ * @apiNote A codec is not thread safe : use one per thread, for instance the one of QOICodec::local.
+ * An output buffer bigger than MAX_RETAINED_BYTES is dropped at the next call, so that an idle codec
+ * never holds the memory of the largest image it has seen
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOICodec {
+
+    /**
+     * Codec of each thread
+     */
+    private static final ThreadLocal<QOICodec> LOCAL = ThreadLocal.withInitial(QOICodec::new);
+
+    /**
+     * Largest output buffer kept from one call to the next
+     */
+    public static final int MAX_RETAINED_BYTES = 1 << 24;
+
+    private final long maxPixels;
+
+    private final int[] index = new int[64];
+
+    private final QOIDecoder.Cursor cursor = new QOIDecoder.Cursor();
+
+    /**
+     * Output of encode and of the encodings streamed to a channel
+     */
+    private QOIBuffer buffer = new QOIBuffer();
+
+    /**
+     * Create a codec decoding images of at most maxPixels pixels
+     * @param maxPixels (long) - Maximal number of pixels of a decoded image
+     * @throws IllegalArgumentException if maxPixels is not positive
+     */
+    public QOICodec(long maxPixels){
+        if (maxPixels <= 0){
+            throw new IllegalArgumentException("The maximal number of pixels must be positive : " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Create a codec decoding images of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels
+     */
+    public QOICodec(){
+        this(QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * @return (QOICodec) - The codec of the current thread, created at its first use
+     */
+    public static QOICodec local(){
+        return LOCAL.get();
+    }
+
+    // ============================================================================================
+    // ==================================== ENCODING API ==========================================
+    // ============================================================================================
+
+    /**
+     * Write the "Quite Ok Image" file of the image in the given buffer
+     * @param src (Helper.FlatImage) - Image to encode
+     * @param dst (QOIBuffer) - Where to write the file, after what it already contains
+     * @throws AssertionError if the image or the buffer is null
+     * @apiNote Writes exactly the same bytes as QOIEncoder::qoiFile
+     */
+    public void encodeInto(Helper.FlatImage src, QOIBuffer dst){
+        assert src != null;
+        assert dst != null;
+        assert src.channels() == 3 || src.channels() == 4;
+        assert src.color_space() == 0 || src.color_space() == 1;
+        QOIEncoder.encodeFile(src, index, dst);
+    }
+
+    /**
+     * Write the "Quite Ok Image" file of the image in the given channel, through the buffer of the codec
+     * @param src (Helper.FlatImage) - Image to encode
+     * @param dst (WritableByteChannel) - Where to write the file
+     * @throws IOException if the channel cannot be written
+     * @throws AssertionError if the image or the channel is null
+     * @apiNote The channel is not closed
+     */
+    public void encodeInto(Helper.FlatImage src, WritableByteChannel dst) throws IOException {
+        assert dst != null;
+        clearBuffer();
+        encodeInto(src, buffer);
+        var bytes = ByteBuffer.wrap(buffer.array(), 0, buffer.position());
+        while (bytes.hasRemaining()){
+            dst.write(bytes);
+        }
+    }
+
+    /**
+     * Encode the image in the buffer of the codec
+     * @param src (Helper.FlatImage) - Image to encode
+     * @return (QOIBuffer) - The buffer of the codec, holding the file. It is overwritten by the next encoding
+     * @throws AssertionError if the image is null
+     */
+    public QOIBuffer encode(Helper.FlatImage src){
+        clearBuffer();
+        encodeInto(src, buffer);
+        return buffer;
+    }
+
+    // ============================================================================================
+    // ==================================== DECODING API ==========================================
+    // ============================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file in the given array
+     * @param src (byte[]) - Content of the file, possibly archived with QOIArchive
+     * @param dst (int[]) - Where to store the ARGB pixels, row after row, at least width * height long
+     * @return (Helper.FlatImage) - The decoded image, backed by dst
+     * @throws QOIFormatException if the file is invalid, truncated or the image is too big
+     * @throws IllegalArgumentException if dst is too short for the image
+     * @throws NullPointerException if src or dst is null
+     */
+    public Helper.FlatImage decodeInto(byte[] src, int[] dst){
+        Objects.requireNonNull(src, "src");
+        Objects.requireNonNull(dst, "dst");
+        var content = QOIDecoder.unwrapChecked(src, maxPixels);
+        var header = QOIDecoder.checkHeader(content, maxPixels);
+        var count = header.width() * header.height();
+        if (dst.length < count){
+            throw new IllegalArgumentException(String.format(Locale.ROOT, "%d pixels cannot hold a %dx%d image",
+                    dst.length, header.width(), header.height()));
+        }
+        return decode(content, header, dst);
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file in a new array
+     * @param src (byte[]) - Content of the file, possibly archived with QOIArchive
+     * @return (Helper.FlatImage) - The decoded image, owning its pixels
+     * @throws QOIFormatException if the file is invalid, truncated or the image is too big
+     * @throws NullPointerException if src is null
+     */
+    public Helper.FlatImage decode(byte[] src){
+        Objects.requireNonNull(src, "src");
+        var content = QOIDecoder.unwrapChecked(src, maxPixels);
+        var header = QOIDecoder.checkHeader(content, maxPixels);
+        return decode(content, header, new int[header.width() * header.height()]);
+    }
+
+    // ============================================================================================
+
+    /**
+     * Empty the output buffer, dropping it if it grew beyond MAX_RETAINED_BYTES
+     */
+    private void clearBuffer(){
+        if (buffer.array().length > MAX_RETAINED_BYTES){
+            buffer = new QOIBuffer();
+        } else {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Decode the checked content in dst, with the cursor of the codec
+     */
+    private Helper.FlatImage decode(byte[] content, QOIDecoder.Header header, int[] dst){
+        cursor.reset();
+        QOIDecoder.decodeChecked(content, QOISpecification.HEADER_SIZE,
+                content.length - QOISpecification.QOI_EOF.length, cursor, dst, header.width() * header.height());
+        return new Helper.FlatImage(dst, header.width(), header.height(), header.channels(), header.color_space());
+    }
+
+}
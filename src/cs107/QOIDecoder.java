@@ -1,5 +1,26 @@
 package cs107;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
 import static cs107.Helper.Image;
 import static cs107.Helper.generateImage;
 
@@ -58,6 +79,101 @@ public final class QOIDecoder {
     }
 
 
+    /**
+     * Information stored in a "Quite Ok Image" header
+     *
+     * @param width       (int) - width of the image, positive
+     * @param height      (int) - height of the image, positive
+     * @param channels    (byte) - number of channels
+     * @param color_space (byte) - color space
+     */
+    public record Header(int width, int height, byte channels, byte color_space) {
+    }
+
+    /**
+     * Read and check the header of a "Quite Ok Image" file, and nothing else.
+     * For a file archived with QOIArchive, only the beginning of the archive is extracted
+     *
+     * @param channel (FileChannel) - The file, its position is left untouched
+     * @return (Header) - The information of the header, its dimensions being positive
+     * @throws IOException if the file cannot be read, does not start with a valid "Quite Ok Image" header,
+     *                     or the dimensions of the image do not fit an int
+     * @apiNote Unlike decodeHeader, the checks do not depend on the assertions being enabled
+     */
+    public static Header probe(FileChannel channel) throws IOException {
+        assert channel != null;
+        ByteBuffer buffer = ByteBuffer.allocate(QOISpecification.HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                throw new EOFException("Truncated \"Quite Ok Image\" header");
+            }
+        }
+        byte[] header = buffer.array();
+        if (QOIArchive.isArchive(header)) {
+            header = QOIArchive.extractHead(channel, QOISpecification.HEADER_SIZE);
+        }
+        try {
+            return checkFields(header, Long.MAX_VALUE);
+        } catch (QOIFormatException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read and check the header of a "Quite Ok Image" file, and nothing else
+     *
+     * @param path (Path) - Path to the file
+     * @return (Header) - The information of the header
+     * @throws IOException if the file cannot be read or does not start with a valid "Quite Ok Image" header
+     */
+    public static Header probe(Path path) throws IOException {
+        assert path != null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return probe(channel);
+        }
+    }
+
+    /**
+     * Probe all the ".qoi" files of a directory tree, several files at the same time
+     *
+     * @param root    (Path) - Folder to scan
+     * @param threads (int) - Number of threads, 0 for one virtual thread per file when available
+     * @return (Map of Path to Header) - Header of each valid "Quite Ok Image" file, the invalid ones being left out
+     * @throws IOException if the tree cannot be walked
+     */
+    public static Map<Path, Header> probeAll(Path root, int threads) throws IOException {
+        assert root != null;
+        assert threads >= 0;
+
+        Map<Path, Header> headers = new ConcurrentHashMap<>();
+        var executor = Helper.newExecutor(threads);
+        try (Stream<Path> files = Files.walk(root)) {
+            var futures = new ArrayList<Future<?>>();
+            files.filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".qoi"))
+                    .filter(Files::isRegularFile)
+                    .forEach(p -> futures.add(executor.submit(() -> {
+                        try {
+                            headers.put(p, probe(p));
+                        } catch (IOException e) {
+                            // Not a "Quite Ok Image" file : left out
+                        }
+                    })));
+            for (var future : futures) {
+                future.get();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Probe interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Probe failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return headers;
+    }
+
     // ==================================================================================
     // =========================== ATOMIC DECODING METHODS ==============================
     // ==================================================================================
@@ -255,30 +371,803 @@ public final class QOIDecoder {
         return image;
     }
 
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol, and record its chunks in the given statistics
+     *
+     * @param data   (byte[]) - Data to decode
+     * @param width  (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @param stats  (QOIStats) - Statistics to fill, null to record nothing
+     * @return (byte[][]) - Decoded "Quite Ok Image", the same as decodeData(data, width, height)
+     */
+    public static byte[][] decodeData(byte[] data, int width, int height, QOIStats stats) {
+        long start = System.nanoTime();
+        byte[][] decoded = decodeData(data, width, height);
+        if (stats != null) {
+            stats.record(data, 0, data.length, System.nanoTime() - start);
+        }
+        return decoded;
+    }
+
     /**
      * Decode a file using the "Quite Ok Image" Protocol
      *
      * @param content (byte[]) - Content of the file to decode
      * @return (Image) - Decoded image
      * @throws AssertionError if content is null
+     * @apiNote The file may also be archived with QOIArchive, it is then extracted first
      */
     public static Image decodeQoiFile(byte[] content) {
         assert content != null;
+        QOIEvent event = QOIEvent.start("QOIDecoder.decodeQoiFile");
+        long bytes = content.length;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
         assert ArrayUtils.equals(ArrayUtils.extract(content, content.length - 8, 8), QOISpecification.QOI_EOF);
 
-        byte[] data = ArrayUtils.extract(content, QOISpecification.HEADER_SIZE, content.length - 22);
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        int end = content.length - QOISpecification.QOI_EOF.length;
 
-        byte[] widthB = ArrayUtils.extract(content, 4, 4);
-        int width = ArrayUtils.toInt(widthB);
+        int[][] dataPIXEL = new int[height][width];
+        Cursor cursor = new Cursor();
+        int idx = QOISpecification.HEADER_SIZE;
+        for (int[] row : dataPIXEL) {
+            idx = decodePixels(content, idx, end, cursor, row, 0, width);
+        }
+        assert cursor.pixel == (long) width * height;
 
-        byte[] heigthB = ArrayUtils.extract(content, 8, 4);
-        int height = ArrayUtils.toInt(heigthB);
+        event.finish(width, height, header[2], bytes);
+        return generateImage(dataPIXEL, (byte) header[2], (byte) header[3]);
+    }
 
-        byte[][] dataRGBA = decodeData(data, height, width);
-        int[][] dataPIXEL = ArrayUtils.channelsToImage(dataRGBA, height, width);
-        Image image = generateImage(dataPIXEL, (byte) content[12], (byte) content[13]);
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, storing the pixels in one array
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Helper.FlatImage) - Decoded image
+     * @throws AssertionError if content is null or does not end with QOI_EOF
+     */
+    public static Helper.FlatImage decodeQoiFileFlat(byte[] content) {
+        assert content != null;
+        QOIEvent event = QOIEvent.start("QOIDecoder.decodeQoiFileFlat");
+        long bytes = content.length;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert ArrayUtils.equals(ArrayUtils.extract(content, content.length - 8, 8), QOISpecification.QOI_EOF);
 
-        return image;
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int[] pixels = new int[Math.multiplyExact(header[0], header[1])];
+        Cursor cursor = new Cursor();
+        decodePixels(content, QOISpecification.HEADER_SIZE, content.length - QOISpecification.QOI_EOF.length,
+                cursor, pixels, 0, pixels.length);
+        assert cursor.pixel == pixels.length;
+
+        event.finish(header[0], header[1], header[2], bytes);
+        return new Helper.FlatImage(pixels, header[0], header[1], (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, storing the pixels off the heap.
+     * Only a few rows at a time are decoded in the heap, whatever the size of the image
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @return (QOIPixels) - Decoded pixels, to be closed by the caller
+     * @throws AssertionError if content is null, the data is too short or does not end with QOI_EOF
+     */
+    public static QOIPixels decodeQoiFileOffHeap(byte[] content) {
+        assert content != null;
+        QOIEvent event = QOIEvent.start("QOIDecoder.decodeQoiFileOffHeap");
+        long bytes = content.length;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert ArrayUtils.equals(ArrayUtils.extract(content, content.length - 8, 8), QOISpecification.QOI_EOF);
 
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        QOIPixels pixels = new QOIPixels(width, height, (byte) header[2], (byte) header[3]);
+        try {
+            int rows = Math.max(1, SCRATCH_PIXELS / width);
+            int[] scratch = new int[rows * width];
+            Cursor cursor = new Cursor();
+            int idx = QOISpecification.HEADER_SIZE;
+            int to = content.length - QOISpecification.QOI_EOF.length;
+            for (int y = 0; y < height; y += rows) {
+                int count = Math.min(rows, height - y);
+                idx = decodePixels(content, idx, to, cursor, scratch, 0, count * width);
+                for (int i = 0; i < count; ++i) {
+                    pixels.writeRow(y + i, scratch, i * width);
+                }
+            }
+            assert cursor.pixel == (long) width * height;
+        } catch (RuntimeException | Error e) {
+            pixels.close();
+            throw e;
+        }
+
+        event.finish(width, height, header[2], bytes);
+        return pixels;
+    }
+
+    /**
+     * Number of pixels decoded in the heap at a time when the image is stored off the heap
+     */
+    private static final int SCRATCH_PIXELS = 1 << 16;
+
+    /**
+     * Decode only some rows of a "Quite Ok Image" file. The rows in front of the range still have
+     * to be decoded (each chunk depends on the previous ones) but they are not kept, and the decoding
+     * stops as soon as the last requested row is complete.
+     *
+     * @param content  (byte[]) - Content of the file to decode
+     * @param firstRow (int) - Index of the first row to decode
+     * @param rowCount (int) - Number of rows to decode
+     * @return (Helper.FlatImage) - The requested rows, as an image of rowCount rows
+     * @throws AssertionError if content is null, the range is outside the image or the data is too short
+     */
+    public static Helper.FlatImage decodeQoiFileRows(byte[] content, int firstRow, int rowCount) {
+        assert content != null;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        assert firstRow >= 0 && rowCount > 0 && (long) firstRow + rowCount <= header[1];
+
+        int end = content.length - QOISpecification.QOI_EOF.length;
+        Cursor cursor = new Cursor();
+        int idx = QOISpecification.HEADER_SIZE;
+        int[] skipped = new int[width];
+        for (int y = 0; y < firstRow; ++y) {
+            idx = decodePixels(content, idx, end, cursor, skipped, 0, width);
+        }
+        int[] pixels = new int[Math.multiplyExact(width, rowCount)];
+        decodePixels(content, idx, end, cursor, pixels, 0, pixels.length);
+        assert cursor.pixel == (long) width * (firstRow + rowCount);
+
+        return new Helper.FlatImage(pixels, width, rowCount, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Decode only some rows of a "Quite Ok Image" file, starting at the last checkpoint
+     * of the index in front of the first requested row instead of the beginning of the file
+     *
+     * @param content  (byte[]) - Content of the file to decode
+     * @param index    (QOIIndex) - Index of the file
+     * @param firstRow (int) - Index of the first row to decode
+     * @param rowCount (int) - Number of rows to decode
+     * @return (Helper.FlatImage) - The requested rows, as an image of rowCount rows
+     * @throws AssertionError if content or index is null, if the index does not match the file,
+     *                        if the range is outside the image or the data is too short
+     * @throws QOIFormatException if a checkpoint of the index is beyond the chunks of the file
+     */
+    public static Helper.FlatImage decodeQoiFileRows(byte[] content, QOIIndex index, int firstRow, int rowCount) {
+        assert content != null && index != null;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        assert header[0] == index.width() && header[1] == index.height();
+        index.check(content.length - QOISpecification.QOI_EOF.length);
+        assert firstRow >= 0 && rowCount > 0 && (long) firstRow + rowCount <= header[1];
+
+        int[] pixels = new int[Math.multiplyExact(header[0], rowCount)];
+        decodeBand(content, index, firstRow, pixels, 0, pixels.length);
+        return new Helper.FlatImage(pixels, header[0], rowCount, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file on all the threads of the common pool, one task per band of the index
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @param index   (QOIIndex) - Index of the file
+     * @return (Helper.FlatImage) - Decoded image, the same as decodeQoiFileFlat(content)
+     * @throws AssertionError if content or index is null, or if the index does not match the file
+     */
+    public static Helper.FlatImage decodeQoiFileParallel(byte[] content, QOIIndex index) {
+        return decodeQoiFileParallel(content, index, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file on the threads of the given pool, one task per band of the index.
+     * Each task starts at the checkpoint of its band, the bands being independent
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @param index   (QOIIndex) - Index of the file
+     * @param pool    (ForkJoinPool) - Threads to use
+     * @return (Helper.FlatImage) - Decoded image, the same as decodeQoiFileFlat(content)
+     * @throws AssertionError if one of the parameters is null, or if the index does not match the file
+     * @throws QOIFormatException if a checkpoint of the index is beyond the chunks of the file
+     */
+    public static Helper.FlatImage decodeQoiFileParallel(byte[] content, QOIIndex index, ForkJoinPool pool) {
+        assert content != null && index != null && pool != null;
+        byte[] file = QOIArchive.unwrap(content);
+        assert file.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+
+        int[] header = decodeHeader(ArrayUtils.extract(file, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        assert width == index.width() && height == index.height();
+        index.check(file.length - QOISpecification.QOI_EOF.length);
+
+        int[] pixels = new int[Math.multiplyExact(width, height)];
+        List<Callable<Void>> bands = new ArrayList<>(index.bands());
+        for (int band = 0; band < index.bands(); ++band) {
+            int row = band * index.rows();
+            int rows = Math.min(index.rows(), height - row);
+            bands.add(() -> {
+                decodeBand(file, index, row, pixels, row * width, rows * width);
+                return null;
+            });
+        }
+        for (Future<Void> band : pool.invokeAll(bands)) {
+            try {
+                band.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                Helper.fail("Parallel decoding failed : %s", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Helper.fail("Parallel decoding interrupted");
+            }
+        }
+        return new Helper.FlatImage(pixels, width, height, (byte) header[2], (byte) header[3]);
+    }
+
+    /**
+     * Decode count pixels from the first pixel of the given row, starting at the checkpoint of the row
+     */
+    private static void decodeBand(byte[] content, QOIIndex index, int row, int[] out, int offset, int count) {
+        int end = content.length - QOISpecification.QOI_EOF.length;
+        Cursor cursor = index.cursor(row);
+        int idx = (int) index.checkpoint(row).offset();
+        assert idx <= end;
+
+        // Drop the pixels between the checkpoint and the row
+        long first = (long) row * index.width();
+        int[] dropped = new int[(int) Math.min(first - cursor.pixel, index.width())];
+        while (cursor.pixel < first) {
+            long before = cursor.pixel;
+            idx = decodePixels(content, idx, end, cursor, dropped, 0, (int) Math.min(first - cursor.pixel, dropped.length));
+            assert cursor.pixel > before;
+        }
+        long before = cursor.pixel;
+        decodePixels(content, idx, end, cursor, out, offset, count);
+        assert cursor.pixel - before == count;
+    }
+
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol, storing the pixels
+     * packed as ARGB integers (the format of Helper.Image::data) row after row.
+     * Unlike decodeData, no memory is allocated per pixel.
+     *
+     * @param data   (byte[]) - Data to decode
+     * @param width  (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @return (int[]) - Decoded pixels
+     * @throws AssertionError if data is null, the dimensions are invalid or data is too short
+     */
+    public static int[] decodePixels(byte[] data, int width, int height) {
+        assert data != null;
+        assert width > 0;
+        assert height > 0;
+
+        int[] pixels = new int[Math.multiplyExact(width, height)];
+        Cursor cursor = new Cursor();
+        decodePixels(data, 0, data.length, cursor, pixels, 0, pixels.length);
+        assert cursor.pixel == pixels.length;
+        return pixels;
+    }
+
+    /**
+     * Decode the given data as decodePixels(data, width, height), and record its chunks in the given statistics
+     *
+     * @param data   (byte[]) - Data to decode
+     * @param width  (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @param stats  (QOIStats) - Statistics to fill, null to record nothing
+     * @return (int[]) - Decoded pixels
+     */
+    public static int[] decodePixels(byte[] data, int width, int height, QOIStats stats) {
+        long start = System.nanoTime();
+        int[] pixels = decodePixels(data, width, height);
+        if (stats != null) {
+            stats.record(data, 0, data.length, System.nanoTime() - start);
+        }
+        return pixels;
+    }
+
+    // ==================================================================================
+    // ============================= CHECKED DECODING METHODS ===========================
+    // ==================================================================================
+
+    /**
+     * Default maximal number of pixels of the checked decoding methods (256 MiB of ARGB pixels)
+     */
+    public static final long DEFAULT_MAX_PIXELS = 1L << 26;
+
+    /**
+     * Check the header of a "Quite Ok Image" file, and that the size of the file fits the image,
+     * before anything is allocated. Every chunk holds at most 62 pixels and takes at most 5 bytes,
+     * which bounds the size of the data.
+     *
+     * @param content   (byte[]) - Content of the file
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (Header) - The information of the header
+     * @throws QOIFormatException if the file is invalid, truncated or the image has more than maxPixels pixels
+     * @throws NullPointerException if content is null
+     * @throws IllegalArgumentException if maxPixels is not positive
+     * @apiNote The checks do not depend on the assertions being enabled
+     */
+    public static Header checkHeader(byte[] content, long maxPixels) {
+        Objects.requireNonNull(content, "content");
+        if (maxPixels <= 0) {
+            throw new IllegalArgumentException("The maximal number of pixels must be positive : " + maxPixels);
+        }
+        if (content.length < QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length) {
+            throw new QOIFormatException("Truncated \"Quite Ok Image\" file : " + content.length + " bytes");
+        }
+        Header header = checkFields(content, Math.min(maxPixels, Integer.MAX_VALUE - 8));
+        long pixels = (long) header.width() * header.height();
+
+        long data = content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length;
+        if (data < (pixels + 61) / 62) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Truncated \"Quite Ok Image\" : %d bytes cannot hold %d pixels", data, pixels));
+        }
+        if (data > pixels * 5) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Corrupted \"Quite Ok Image\" : %d bytes for %d pixels", data, pixels));
+        }
+        if (!Arrays.equals(content, content.length - QOISpecification.QOI_EOF.length, content.length,
+                QOISpecification.QOI_EOF, 0, QOISpecification.QOI_EOF.length)) {
+            throw new QOIFormatException("Missing \"Quite Ok Image\" EOF");
+        }
+        return header;
+    }
+
+    /**
+     * Check the fields of a "Quite Ok Image" header : its magic number, its format and its dimensions
+     *
+     * @param header    (byte[]) - At least the HEADER_SIZE first bytes of the file
+     * @param maxPixels (long) - Maximal number of pixels of the image, positive
+     * @return (Header) - The information of the header, its dimensions being positive
+     * @throws QOIFormatException if the header is invalid or the image has more than maxPixels pixels
+     */
+    static Header checkFields(byte[] header, long maxPixels) {
+        assert header.length >= QOISpecification.HEADER_SIZE;
+        assert maxPixels > 0;
+        if (!Arrays.equals(header, 0, QOISpecification.QOI_MAGIC.length,
+                QOISpecification.QOI_MAGIC, 0, QOISpecification.QOI_MAGIC.length)) {
+            throw new QOIFormatException("Not a \"Quite Ok Image\" file");
+        }
+        byte channels = header[12];
+        byte colorSpace = header[13];
+        if ((channels != QOISpecification.RGB && channels != QOISpecification.RGBA)
+                || (colorSpace != QOISpecification.sRGB && colorSpace != QOISpecification.ALL)) {
+            throw new QOIFormatException("Corrupted \"Quite Ok Image\" header");
+        }
+
+        // The dimensions are unsigned : their product is checked without overflowing
+        long width = Integer.toUnsignedLong(readInt(header, 4));
+        long height = Integer.toUnsignedLong(readInt(header, 8));
+        if (width == 0 || height == 0) {
+            throw new QOIFormatException("Empty \"Quite Ok Image\" : " + width + "x" + height);
+        }
+        if (width > maxPixels / height) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "\"Quite Ok Image\" too big : %dx%d pixels, at most %d allowed", width, height, maxPixels));
+        }
+        // A row must fit in an array, even when the whole image does not
+        if (width > Integer.MAX_VALUE - 8 || height > Integer.MAX_VALUE) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "\"Quite Ok Image\" too big : %dx%d pixels", width, height));
+        }
+        return new Header((int) width, (int) height, channels, colorSpace);
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, checking everything on the way.
+     * Meant for untrusted content : the size of the image is bounded before anything is allocated,
+     * and a truncated or corrupted file is reported instead of read past its end.
+     *
+     * @param content   (byte[]) - Content of the file to decode, possibly archived with QOIArchive
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (Helper.FlatImage) - Decoded image
+     * @throws QOIFormatException if the file is invalid, truncated or the image has more than maxPixels pixels
+     * @throws NullPointerException if content is null
+     * @throws IllegalArgumentException if maxPixels is not positive
+     * @apiNote The checks do not depend on the assertions being enabled
+     */
+    public static Helper.FlatImage decodeQoiFileChecked(byte[] content, long maxPixels) {
+        Objects.requireNonNull(content, "content");
+        content = unwrapChecked(content, maxPixels);
+
+        Header header = checkHeader(content, maxPixels);
+        int[] pixels = new int[header.width() * header.height()];
+        decodeChecked(content, QOISpecification.HEADER_SIZE, content.length - QOISpecification.QOI_EOF.length,
+                new Cursor(), pixels, pixels.length);
+        return new Helper.FlatImage(pixels, header.width(), header.height(), header.channels(), header.color_space());
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, checking everything on the way,
+     * with at most DEFAULT_MAX_PIXELS pixels
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Helper.FlatImage) - Decoded image
+     * @throws QOIFormatException if the file is invalid, truncated or the image is too big
+     */
+    public static Helper.FlatImage decodeQoiFileChecked(byte[] content) {
+        return decodeQoiFileChecked(content, DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol, checking everything on the way
+     *
+     * @param data      (byte[]) - Data to decode
+     * @param width     (int) - The width of the expected output
+     * @param height    (int) - The height of the expected output
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (byte[][]) - Decoded "Quite Ok Image", the same as decodeData(data, width, height)
+     * @throws QOIFormatException if the dimensions are invalid, the image has more than maxPixels pixels
+     *                            or the data does not hold exactly width * height pixels
+     * @throws NullPointerException if data is null
+     * @apiNote The checks do not depend on the assertions being enabled
+     */
+    public static byte[][] decodeDataChecked(byte[] data, int width, int height, long maxPixels) {
+        Objects.requireNonNull(data, "data");
+        if (width <= 0 || height <= 0) {
+            throw new QOIFormatException("Invalid dimensions : " + width + "x" + height);
+        }
+        if (width > Math.min(maxPixels, Integer.MAX_VALUE - 8) / height) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Image too big : %dx%d pixels, at most %d allowed", width, height, maxPixels));
+        }
+        long pixels = (long) width * height;
+        if (data.length < (pixels + 61) / 62) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Truncated data : %d bytes cannot hold %d pixels", data.length, pixels));
+        }
+
+        int[] decoded = new int[width * height];
+        decodeChecked(data, 0, data.length, new Cursor(), decoded, decoded.length);
+        byte[][] channels = new byte[decoded.length][];
+        for (int i = 0; i < decoded.length; ++i) {
+            int pixel = decoded[i];
+            channels[i] = new byte[]{(byte) (pixel >> 16), (byte) (pixel >> 8), (byte) pixel, (byte) (pixel >>> 24)};
+        }
+        return channels;
+    }
+
+    /**
+     * Read the big endian integer at data[at, at + 4)
+     */
+    private static int readInt(byte[] data, int at) {
+        return (data[at] & 0xFF) << 24 | (data[at + 1] & 0xFF) << 16 | (data[at + 2] & 0xFF) << 8 | (data[at + 3] & 0xFF);
+    }
+
+    /**
+     * Extract an archived file, its size being bounded before it is extracted
+     *
+     * @return (byte[]) - Content of the "Quite Ok Image" file, content itself when it is not archived
+     * @throws QOIFormatException if the archive is corrupted or too big for maxPixels pixels
+     */
+    static byte[] unwrapChecked(byte[] content, long maxPixels) {
+        if (!QOIArchive.isArchive(content)) {
+            return content;
+        }
+        long size = Integer.toUnsignedLong(QOIArchive.size(content));
+        if (size > Math.min(maxPixels, Integer.MAX_VALUE) * 5
+                + QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length) {
+            throw new QOIFormatException("Archived \"Quite Ok Image\" too big : " + size + " bytes");
+        }
+        try {
+            return QOIArchive.decompress(content);
+        } catch (RuntimeException e) {
+            throw new QOIFormatException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decode the chunks of data[from, to) in pixels[0, count) with a fresh cursor.
+     * The chunks must hold exactly count pixels
+     *
+     * @throws QOIFormatException if the chunks hold fewer or more pixels
+     */
+    static void decodeChecked(byte[] data, int from, int to, Cursor cursor, int[] pixels, int count) {
+        int idx = decodePixels(data, from, to, cursor, pixels, 0, count);
+        if (cursor.pixel != count) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Truncated data : %d pixels of %d decoded", cursor.pixel, count));
+        }
+        if (idx != to || cursor.run != 0) {
+            throw new QOIFormatException(String.format(Locale.ROOT,
+                    "Corrupted data : chunks left after the last pixel, at byte %d", idx));
+        }
+    }
+
+    // ==================================================================================
+    // ============================== DECODING ENGINE ===================================
+    // ==================================================================================
+
+    /**
+     * START_PIXEL packed as an ARGB integer
+     */
+    private static final int START_PIXEL = 0xFF_00_00_00;
+
+    /**
+     * Channel differences of each QOI_OP_DIFF chunk, indexed by the unsigned chunk
+     */
+    private static final int[] DIFF = new int[256];
+
+    /**
+     * Green difference of each first byte of a QOI_OP_LUMA chunk, added to the three colors
+     */
+    private static final int[] LUMA_G = new int[256];
+
+    /**
+     * Red and blue differences (relative to the green one) of each second byte of a QOI_OP_LUMA chunk
+     */
+    private static final int[] LUMA_RB = new int[256];
+
+    static {
+        for (int op = 0; op < 256; ++op) {
+            int dr = ((op >> 4) & 0b11) - 2;
+            int dg = ((op >> 2) & 0b11) - 2;
+            int db = (op & 0b11) - 2;
+            DIFF[op] = packRGB(dr, dg, db);
+
+            int luma = (op & 0b11_11_11) - 32;
+            LUMA_G[op] = packRGB(luma, luma, luma);
+
+            LUMA_RB[op] = packRGB(((op >> 4) & 0b11_11) - 8, 0, (op & 0b11_11) - 8);
+        }
+    }
+
+    /**
+     * Where a decoding stands : the position in the image, the previous pixel,
+     * the hash table and the pixels of a QOI_OP_RUN still to be written
+     */
+    static final class Cursor {
+
+        long pixel;
+
+        int previous = START_PIXEL;
+
+        int run;
+
+        final int[] index = new int[64];
+
+        Cursor() {
+        }
+
+        /**
+         * Copy the state of another cursor
+         */
+        Cursor(long pixel, int previous, int run, int[] index) {
+            assert index.length == 64;
+            this.pixel = pixel;
+            this.previous = previous;
+            this.run = run;
+            System.arraycopy(index, 0, this.index, 0, 64);
+        }
+
+        /**
+         * Go back to the state of a new cursor, for the next decoding
+         */
+        void reset() {
+            pixel = 0;
+            previous = START_PIXEL;
+            run = 0;
+            Arrays.fill(index, 0);
+        }
+    }
+
+    /**
+     * Decode the chunks of data[from, to) and store at most count pixels in out, starting at offset.
+     * The decoding stops when count pixels are stored, or before a chunk that is not entirely in data[from, to) ;
+     * in both cases the cursor is left so that it can go on from the returned index.
+     *
+     * @param data   (byte[]) - Data to decode
+     * @param from   (int) - Index of the first chunk to decode
+     * @param to     (int) - Index after the last byte that can be read
+     * @param cursor (Cursor) - State of the decoding, updated in place
+     * @param out    (int[]) - Where to store the ARGB pixels
+     * @param offset (int) - Index in out of the first pixel to store
+     * @param count  (int) - Maximal number of pixels to store
+     * @return (int) - Index in data of the first chunk not decoded yet
+     */
+    static int decodePixels(byte[] data, int from, int to, Cursor cursor, int[] out, int offset, int count) {
+        int position = offset;
+        int end = offset + count;
+        int previous = cursor.previous;
+        int[] index = cursor.index;
+
+        if (cursor.run > 0) {
+            int length = Math.min(cursor.run, end - position);
+            Arrays.fill(out, position, position + length, previous);
+            position += length;
+            cursor.run -= length;
+        }
+
+        int idx = from;
+        decoding:
+        while (position < end && idx < to) {
+            int op = data[idx] & 0xFF;
+            switch (op >> 6) {
+                case 0 -> {
+                    previous = index[op];
+                    idx += 1;
+                }
+                case 1 -> {
+                    previous = diff(previous, op);
+                    index[QOISpecification.hash(previous)] = previous;
+                    idx += 1;
+                }
+                case 2 -> {
+                    if (idx + 2 > to) {
+                        break decoding;
+                    }
+                    previous = luma(previous, op, data[idx + 1]);
+                    index[QOISpecification.hash(previous)] = previous;
+                    idx += 2;
+                }
+                default -> {
+                    if (op == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)) {
+                        if (idx + 4 > to) {
+                            break decoding;
+                        }
+                        previous = rgb(previous, data[idx + 1], data[idx + 2], data[idx + 3]);
+                        index[QOISpecification.hash(previous)] = previous;
+                        idx += 4;
+                    } else if (op == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)) {
+                        if (idx + 5 > to) {
+                            break decoding;
+                        }
+                        previous = rgba(data[idx + 1], data[idx + 2], data[idx + 3], data[idx + 4]);
+                        index[QOISpecification.hash(previous)] = previous;
+                        idx += 5;
+                    } else {
+                        int run = (op & 0b11_11_11) + 1;
+                        int length = Math.min(run, end - position);
+                        Arrays.fill(out, position, position + length, previous);
+                        position += length;
+                        cursor.run = run - length;
+                        idx += 1;
+                        continue;
+                    }
+                }
+            }
+            out[position++] = previous;
+        }
+
+        cursor.previous = previous;
+        cursor.pixel += position - offset;
+        return idx;
+    }
+
+    /**
+     * Same as decodePixels(byte[], ...), reading the chunks straight from a buffer, such as a window of a file
+     * mapped in memory. The buffer is read with absolute indices : its position and limit are left untouched
+     *
+     * @param data   (ByteBuffer) - Data to decode
+     * @param from   (int) - Index of the first chunk to decode
+     * @param to     (int) - Index after the last byte that can be read
+     * @param cursor (Cursor) - State of the decoding, updated in place
+     * @param out    (int[]) - Where to store the ARGB pixels
+     * @param offset (int) - Index in out of the first pixel to store
+     * @param count  (int) - Maximal number of pixels to store
+     * @return (int) - Index in data of the first chunk not decoded yet
+     */
+    static int decodePixels(ByteBuffer data, int from, int to, Cursor cursor, int[] out, int offset, int count) {
+        int position = offset;
+        int end = offset + count;
+        int previous = cursor.previous;
+        int[] index = cursor.index;
+
+        if (cursor.run > 0) {
+            int length = Math.min(cursor.run, end - position);
+            Arrays.fill(out, position, position + length, previous);
+            position += length;
+            cursor.run -= length;
+        }
+
+        int idx = from;
+        decoding:
+        while (position < end && idx < to) {
+            int op = data.get(idx) & 0xFF;
+            switch (op >> 6) {
+                case 0 -> {
+                    previous = index[op];
+                    idx += 1;
+                }
+                case 1 -> {
+                    previous = diff(previous, op);
+                    index[QOISpecification.hash(previous)] = previous;
+                    idx += 1;
+                }
+                case 2 -> {
+                    if (idx + 2 > to) {
+                        break decoding;
+                    }
+                    previous = luma(previous, op, data.get(idx + 1));
+                    index[QOISpecification.hash(previous)] = previous;
+                    idx += 2;
+                }
+                default -> {
+                    if (op == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)) {
+                        if (idx + 4 > to) {
+                            break decoding;
+                        }
+                        previous = rgb(previous, data.get(idx + 1), data.get(idx + 2), data.get(idx + 3));
+                        index[QOISpecification.hash(previous)] = previous;
+                        idx += 4;
+                    } else if (op == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)) {
+                        if (idx + 5 > to) {
+                            break decoding;
+                        }
+                        previous = rgba(data.get(idx + 1), data.get(idx + 2), data.get(idx + 3), data.get(idx + 4));
+                        index[QOISpecification.hash(previous)] = previous;
+                        idx += 5;
+                    } else {
+                        int run = (op & 0b11_11_11) + 1;
+                        int length = Math.min(run, end - position);
+                        Arrays.fill(out, position, position + length, previous);
+                        position += length;
+                        cursor.run = run - length;
+                        idx += 1;
+                        continue;
+                    }
+                }
+            }
+            out[position++] = previous;
+        }
+
+        cursor.previous = previous;
+        cursor.pixel += position - offset;
+        return idx;
+    }
+
+    /**
+     * @return (int) - Pixel of a QOI_OP_DIFF chunk following the previous one
+     */
+    static int diff(int previous, int op) {
+        return QOISpecification.addChannels(previous, DIFF[op]);
+    }
+
+    /**
+     * @return (int) - Pixel of a QOI_OP_LUMA chunk following the previous one, second being its second byte
+     */
+    static int luma(int previous, int op, byte second) {
+        return QOISpecification.addChannels(previous, QOISpecification.addChannels(LUMA_G[op], LUMA_RB[second & 0xFF]));
+    }
+
+    /**
+     * @return (int) - Pixel of a QOI_OP_RGB chunk following the previous one, which gives its alpha
+     */
+    static int rgb(int previous, byte r, byte g, byte b) {
+        return previous & 0xFF_00_00_00 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+    }
+
+    /**
+     * @return (int) - Pixel of a QOI_OP_RGBA chunk
+     */
+    static int rgba(byte r, byte g, byte b, byte a) {
+        return (a & 0xFF) << 24 | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+    }
+
+    /**
+     * Pack three channel differences as an ARGB integer, the alpha difference being 0
+     */
+    private static int packRGB(int dr, int dg, int db) {
+        return (dr & 0xFF) << 16 | (dg & 0xFF) << 8 | (db & 0xFF);
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,18 @@
 package cs107;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
 
 /**
  * "Quite Ok Image" Encoder
@@ -32,17 +44,43 @@ public final class QOIEncoder {
      */
     public static byte[] qoiHeader(Helper.Image image) {
         assert image != null;
-        assert image.channels() == 3 || image.channels() == 4;
-        assert image.color_space() == 0 || image.color_space() == 1;
 
         int[][] data = image.data();
-        byte[] largeur = ArrayUtils.fromInt(data[0].length);
-        byte[] hauteur = ArrayUtils.fromInt(data.length);
-        int can = image.channels();
-        byte[] cannaux = ArrayUtils.fromInt(can);
+        return qoiHeader(data[0].length, data.length, image.channels(), image.color_space());
+    }
+
+    /**
+     * Generate a "Quite Ok Image" header using the following parameters
+     *
+     * @param image (Helper.FlatImage) - Image to use
+     * @return (byte[]) - Corresponding "Quite Ok Image" Header
+     * @throws AssertionError if the colorspace or the number of channels is corrupted or if the image is null.
+     */
+    public static byte[] qoiHeader(Helper.FlatImage image) {
+        assert image != null;
+
+        return qoiHeader(image.width(), image.height(), image.channels(), image.color_space());
+    }
+
+    /**
+     * Generate a "Quite Ok Image" header from the dimensions and the format of an image
+     *
+     * @param width      (int) - Width of the image
+     * @param height     (int) - Height of the image
+     * @param channels   (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @return (byte[]) - Corresponding "Quite Ok Image" Header
+     * @throws AssertionError if the colorspace or the number of channels is corrupted
+     */
+    static byte[] qoiHeader(int width, int height, byte channels, byte colorSpace) {
+        assert channels == 3 || channels == 4;
+        assert colorSpace == 0 || colorSpace == 1;
+
+        byte[] largeur = ArrayUtils.fromInt(width);
+        byte[] hauteur = ArrayUtils.fromInt(height);
+        byte[] cannaux = ArrayUtils.fromInt(channels);
         byte[] cancan = ArrayUtils.extract(cannaux, 3, 1);
-        int col = image.color_space();
-        byte[] color = ArrayUtils.fromInt(col);
+        byte[] color = ArrayUtils.fromInt(colorSpace);
         byte[] colcol = ArrayUtils.extract(color, 3, 1);
         byte[] header = ArrayUtils.concat(QOISpecification.QOI_MAGIC, largeur, hauteur, cancan, colcol);
 
@@ -200,73 +238,261 @@ public final class QOIEncoder {
             assert image[i] != null;
         }
 
-        byte[] pixelPrecedent = QOISpecification.START_PIXEL;
-        byte[][] tabHach = new byte[64][4];
-        ArrayList<byte[]> encode = new ArrayList<>();
-        int compteur = 0;
-
+        int[] pixels = new int[image.length];
         for (int i = 0; i < image.length; ++i) {
-            if (ArrayUtils.equals(image[i], pixelPrecedent)) {
-                ++compteur;
-                if (((compteur == 62) || (i == image.length - 1))) {
-                    encode.add(qoiOpRun((byte) compteur));
-                    compteur = 0;
-                }
-            } else {
-                if ((compteur > 0)) {
-                    encode.add(qoiOpRun((byte) compteur));
-                    compteur = 0;
-                }
-                if (ArrayUtils.equals(tabHach[QOISpecification.hash(image[i])], image[i])) {
-                    encode.add(qoiOpIndex(QOISpecification.hash(image[i])));
+            pixels[i] = (image[i][3] & 0xFF) << 24 | (image[i][0] & 0xFF) << 16
+                    | (image[i][1] & 0xFF) << 8 | (image[i][2] & 0xFF);
+        }
+        return encodeData(pixels);
+    }
 
-                } else {
-                    tabHach[QOISpecification.hash(image[i])] = image[i];
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol, and record the produced chunks in the given statistics
+     *
+     * @param image (byte[][]) - Formatted image to encode
+     * @param stats (QOIStats) - Statistics to fill, null to record nothing
+     * @return (byte[]) - "Quite Ok Image" representation of the image, the same as encodeData(image)
+     */
+    public static byte[] encodeData(byte[][] image, QOIStats stats) {
+        long start = System.nanoTime();
+        byte[] encoding = encodeData(image);
+        if (stats != null) {
+            stats.record(encoding, 0, encoding.length, System.nanoTime() - start);
+        }
+        return encoding;
+    }
 
-                    if ((image[i][3] == pixelPrecedent[3]) &&
-                            (byte) (image[i][0] - pixelPrecedent[0]) < 2 && (byte) (image[i][0] - pixelPrecedent[0]) > -3
-                            && (byte) (image[i][1] - pixelPrecedent[1]) < 2 && (byte) (image[i][1] - pixelPrecedent[1]) > -3
-                            && (byte) (image[i][2] - pixelPrecedent[2]) < 2 && (byte) (image[i][2] - pixelPrecedent[2]) > -3) {
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol, and record the produced chunks in the given statistics
+     *
+     * @param image (int[][]) - ARGB pixels, as stored in Helper.Image::data
+     * @param stats (QOIStats) - Statistics to fill, null to record nothing
+     * @return (byte[]) - "Quite Ok Image" representation of the image, the same as encodeData(image)
+     */
+    public static byte[] encodeData(int[][] image, QOIStats stats) {
+        long start = System.nanoTime();
+        byte[] encoding = encodeData(image);
+        if (stats != null) {
+            stats.record(encoding, 0, encoding.length, System.nanoTime() - start);
+        }
+        return encoding;
+    }
+
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol, working directly
+     * on the packed ARGB pixels of Helper.Image (no intermediate byte[4] per pixel)
+     *
+     * @param image (int[][]) - ARGB pixels, as stored in Helper.Image::data
+     * @return (byte[]) - "Quite Ok Image" representation of the image
+     * @throws AssertionError if the image or one of its rows is null
+     * @apiNote Produces exactly the same bytes as encodeData(ArrayUtils.imageToChannels(image))
+     */
+    public static byte[] encodeData(int[][] image) {
+        assert image != null;
+        QOIBuffer encode = new QOIBuffer(Math.max(64, pixelCount(image)));
+        encodeData(image, encode);
+        return encode.toArray();
+    }
+
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol and write the chunks in the given buffer
+     *
+     * @param image (int[][]) - ARGB pixels, as stored in Helper.Image::data
+     * @param out   (QOIBuffer) - Where to write the chunks, after what it already contains
+     * @throws AssertionError if the image, one of its rows or the buffer is null
+     */
+    public static void encodeData(int[][] image, QOIBuffer out) {
+        assert image != null;
+        assert out != null;
+        for (int[] row : image) {
+            assert row != null;
+        }
 
-                        byte dr = (byte) (image[i][0] - pixelPrecedent[0]);
-                        byte dg = (byte) (image[i][1] - pixelPrecedent[1]);
-                        byte db = (byte) (image[i][2] - pixelPrecedent[2]);
-                        byte[] delta = ArrayUtils.concat(dr, dg, db);
+        int[] index = new int[64];
+        int previous = START_PIXEL;
+        int run = 0;
 
-                        encode.add(qoiOpDiff(delta));
+        for (int[] row : image) {
+            if (row.length == 0) {
+                continue;
+            }
+            run = encodePixels(row, 0, row.length, previous, index, run, out);
+            previous = row[row.length - 1];
+        }
+        if (run > 0) {
+            out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+        }
+    }
+
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol
+     *
+     * @param image (Helper.FlatImage) - Image to encode
+     * @return (byte[]) - "Quite Ok Image" representation of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] encodeData(Helper.FlatImage image) {
+        assert image != null;
+        QOIBuffer encode = new QOIBuffer(Math.max(64, image.width() * image.height()));
+        encodeData(image, encode);
+        return encode.toArray();
+    }
+
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol and write the chunks in the given buffer.
+     * The rows are read in place, whatever the stride of the image
+     *
+     * @param image (Helper.FlatImage) - Image to encode
+     * @param out   (QOIBuffer) - Where to write the chunks, after what it already contains
+     * @throws AssertionError if the image or the buffer is null
+     */
+    public static void encodeData(Helper.FlatImage image, QOIBuffer out) {
+        assert image != null;
+        assert out != null;
+
+        int run = encodeRows(image, 0, image.height(), START_PIXEL, new int[64], 0, out);
+        if (run > 0) {
+            out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+        }
+    }
+
+    /**
+     * Encode the given pixels using the "Quite Ok Image" Protocol
+     *
+     * @param pixels (int[]) - ARGB pixels, row after row
+     * @return (byte[]) - "Quite Ok Image" representation of the pixels
+     * @throws AssertionError if pixels is null
+     */
+    public static byte[] encodeData(int[] pixels) {
+        assert pixels != null;
+        return encodeData(new int[][]{pixels});
+    }
+
+    /**
+     * START_PIXEL packed as an ARGB integer
+     */
+    private static final int START_PIXEL = 0xFF_00_00_00;
+
+    /**
+     * Encode the pixels in [from, to) and write the produced chunks in out.
+     * A run still open after the last pixel is NOT written, its length is returned instead
+     * so that the caller can carry it over to the next pixels or flush it.
+     *
+     * @param pixels   (int[]) - ARGB pixels
+     * @param from     (int) - Index of the first pixel to encode
+     * @param to       (int) - Index after the last pixel to encode
+     * @param previous (int) - Pixel preceding pixels[from]
+     * @param index    (int[]) - Hash table of the already seen pixels, updated in place
+     * @param run      (int) - Length of the run preceding pixels[from]
+     * @param out      (QOIBuffer) - Where to write the chunks
+     * @return (int) - Length of the run still open after pixels[to - 1]
+     */
+    private static int encodePixels(int[] pixels, int from, int to, int previous, int[] index, int run,
+                                    QOIBuffer out) {
+        for (int i = from; i < to; ++i) {
+            int pixel = pixels[i];
+            if (pixel == previous) {
+                // Length of the run from i : comparing the pixels with their predecessors
+                // lets Arrays.mismatch scan many pixels at a time
+                int length = Arrays.mismatch(pixels, i + 1, to, pixels, i, to - 1);
+                length = 1 + (length < 0 ? to - i - 1 : length);
+                run += length;
+                for (; run >= 62; run -= 62) {
+                    out.write(QOISpecification.QOI_OP_RUN_TAG | 61);
+                }
+                i += length - 1;
+                continue;
+            }
+            if (run > 0) {
+                out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+                run = 0;
+            }
+
+            int hash = QOISpecification.hash(pixel);
+            if (index[hash] == pixel) {
+                out.write(QOISpecification.QOI_OP_INDEX_TAG | hash);
+            } else {
+                index[hash] = pixel;
+                if ((pixel ^ previous) >>> 24 == 0) {
+                    // The three color differences, biased by 2, in one integer : they fit
+                    // in QOI_OP_DIFF when no biased difference has a bit above the lowest two
+                    int diff = QOISpecification.addChannels(QOISpecification.subChannels(pixel, previous), DIFF_BIAS);
+                    if ((diff & DIFF_OVERFLOW) == 0) {
+                        out.write(QOISpecification.QOI_OP_DIFF_TAG | (diff >> 12) | (diff >> 6) & 0b11_00 | diff & 0b11);
+                        previous = pixel;
+                        continue;
+                    }
+                    int dr = (byte) ((pixel >> 16) - (previous >> 16));
+                    int dg = (byte) ((pixel >> 8) - (previous >> 8));
+                    int db = (byte) (pixel - previous);
+                    int drg = dr - dg;
+                    int dbg = db - dg;
+                    if (dg > -33 && dg < 32 && drg > -9 && drg < 8 && dbg > -9 && dbg < 8) {
+                        out.write(QOISpecification.QOI_OP_LUMA_TAG | (dg + 32), (drg + 8) << 4 | (dbg + 8));
                     } else {
-                        if ((image[i][3] == pixelPrecedent[3]) &&
-                                (-33 < ((byte) (image[i][1] - pixelPrecedent[1]))) && ((byte) (image[i][1] - pixelPrecedent[1]) < 32) &&
-                                (-9 < ((byte) (image[i][0] - pixelPrecedent[0]) - (byte) (image[i][1] - pixelPrecedent[1])) && (((byte) (image[i][0] - pixelPrecedent[0]) - (byte) (image[i][1] - pixelPrecedent[1])) < 8) &&
-                                        (-9 < ((byte) (image[i][2] - pixelPrecedent[2]) - (byte) (image[i][1] - pixelPrecedent[1]))) && ((byte) (image[i][2] - pixelPrecedent[2]) - (byte) (image[i][1] - pixelPrecedent[1])) < 8)) {
-
-
-                            byte drr = (byte) (image[i][0] - pixelPrecedent[0]);
-                            byte dgg = (byte) (image[i][1] - pixelPrecedent[1]);
-                            byte dbb = (byte) (image[i][2] - pixelPrecedent[2]);
-                            byte[] delta = ArrayUtils.concat(drr, dgg, dbb);
-                            encode.add(qoiOpLuma(delta));
-                        } else {
-                            if (image[i][3] == pixelPrecedent[3]) {
-                                encode.add(qoiOpRGB(image[i]));
-                            } else {
-                                encode.add(qoiOpRGBA(image[i]));
-                            }
-                        }
+                        out.write(QOISpecification.QOI_OP_RGB_TAG, pixel >> 16, pixel >> 8, pixel);
                     }
+                } else {
+                    out.write(QOISpecification.QOI_OP_RGBA_TAG, pixel >> 16, pixel >> 8, pixel, pixel >>> 24);
                 }
             }
-            pixelPrecedent = image[i];
+            previous = pixel;
         }
-        byte[][] data;
-        data = encode.toArray(new byte[0][]);
-
-
-        return ArrayUtils.concat(data);
+        return run;
+    }
 
+    /**
+     * Encode the rows [from, to) of the image, as encodePixels does with a range of pixels
+     *
+     * @return (int) - Length of the run still open after the last pixel of row to - 1
+     */
+    private static int encodeRows(Helper.FlatImage image, int from, int to, int previous, int[] index, int run,
+                                  QOIBuffer out) {
+        int[] data = image.data();
+        int width = image.width();
+        int stride = image.stride();
+        if (stride == width) {
+            // The rows follow each other : they are encoded as one range
+            int start = image.offset() + from * width;
+            return encodePixels(data, start, start + (to - from) * width, previous, index, run, out);
+        }
+        for (int y = from; y < to; ++y) {
+            int start = image.offset() + y * stride;
+            run = encodePixels(data, start, start + width, previous, index, run, out);
+            previous = data[start + width - 1];
+        }
+        return run;
+    }
 
+    /**
+     * Write the "Quite Ok Image" file of the image (header, chunks and EOF) in out without allocating anything
+     *
+     * @param index (int[]) - Hash table, cleared first and left as it is after the last pixel
+     */
+    static void encodeFile(Helper.FlatImage image, int[] index, QOIBuffer out) {
+        int width = image.width();
+        int height = image.height();
+        Arrays.fill(index, 0);
+        out.write(QOISpecification.QOI_MAGIC);
+        out.write(width >>> 24, width >>> 16, width >>> 8, width);
+        out.write(height >>> 24, height >>> 16, height >>> 8, height);
+        out.write(image.channels(), image.color_space());
+        int run = encodeRows(image, 0, height, START_PIXEL, index, 0, out);
+        if (run > 0) {
+            out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+        }
+        out.write(QOISpecification.QOI_EOF);
     }
 
+    /**
+     * Bias of QOI_OP_DIFF (2) added to the red, green and blue bytes of an ARGB integer
+     */
+    private static final int DIFF_BIAS = 0x00_02_02_02;
+
+    /**
+     * Bits of the red, green and blue bytes that must be 0 in a biased QOI_OP_DIFF difference
+     */
+    private static final int DIFF_OVERFLOW = 0x00_FC_FC_FC;
 
     /**
      * Creates the representation in memory of the "Quite Ok Image" file.
@@ -280,12 +506,463 @@ public final class QOIEncoder {
     public static byte[] qoiFile(Helper.Image image) {
         assert image != null;
 
-        byte[] head = qoiHeader(image);
-        int[][] dataPIXEL = image.data();
-        byte[][] dataRGBA = ArrayUtils.imageToChannels(dataPIXEL);
-        byte[] body = encodeData(dataRGBA);
+        int[][] data = image.data();
+        QOIBuffer file = new QOIBuffer(Math.max(64, pixelCount(data)));
+        qoiFile(image, file);
+        return file.toArray();
+    }
 
+    /**
+     * Write the "Quite Ok Image" file of the image (header, chunks and EOF) in the given buffer.
+     *
+     * @param image (Helper.Image) - Image to encode
+     * @param out   (QOIBuffer) - Where to write the file, after what it already contains
+     * @throws AssertionError if the image or the buffer is null
+     * @apiNote A buffer of QOIBuffer.maxSize(width, height) bytes never has to grow
+     */
+    public static void qoiFile(Helper.Image image, QOIBuffer out) {
+        assert image != null;
+        assert out != null;
+
+        QOIEvent event = QOIEvent.start("QOIEncoder.qoiFile");
+        long start = out.written();
+        out.write(qoiHeader(image));
+        encodeData(image.data(), out);
+        out.write(QOISpecification.QOI_EOF);
+        event.finish(image.data()[0].length, image.data().length, image.channels(), out.written() - start);
+    }
+
+    /**
+     * Size of the buffer used when streaming a "Quite Ok Image" file
+     */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Stream the "Quite Ok Image" file of the image (header, chunks and EOF) to the given channel,
+     * through a buffer of constant size. The encoded file is never held in memory as a whole.
+     *
+     * @param image   (Helper.Image) - Image to encode
+     * @param channel (WritableByteChannel) - Where to write the file
+     * @throws IOException if the channel cannot be written
+     * @throws AssertionError if the image or the channel is null
+     * @apiNote The channel is not closed
+     */
+    public static void qoiFile(Helper.Image image, WritableByteChannel channel) throws IOException {
+        assert image != null;
+        assert channel != null;
+
+        stream(out -> qoiFile(image, out), channel);
+    }
+
+    /**
+     * Stream the "Quite Ok Image" file of the image to the given output stream
+     *
+     * @param image  (Helper.Image) - Image to encode
+     * @param output (OutputStream) - Where to write the file
+     * @throws IOException if the stream cannot be written
+     * @throws AssertionError if the image or the stream is null
+     * @apiNote The stream is not closed
+     */
+    public static void qoiFile(Helper.Image image, OutputStream output) throws IOException {
+        assert output != null;
+        qoiFile(image, Channels.newChannel(output));
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file.
+     *
+     * @param image (Helper.FlatImage) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFile(Helper.FlatImage image) {
+        assert image != null;
+
+        QOIBuffer file = new QOIBuffer(Math.max(64, image.width() * image.height()));
+        qoiFile(image, file);
+        return file.toArray();
+    }
+
+    /**
+     * Write the "Quite Ok Image" file of the image (header, chunks and EOF) in the given buffer.
+     *
+     * @param image (Helper.FlatImage) - Image to encode
+     * @param out   (QOIBuffer) - Where to write the file, after what it already contains
+     * @throws AssertionError if the image or the buffer is null
+     */
+    public static void qoiFile(Helper.FlatImage image, QOIBuffer out) {
+        assert image != null;
+        assert out != null;
+
+        assert image.channels() == 3 || image.channels() == 4;
+        assert image.color_space() == 0 || image.color_space() == 1;
+
+        QOIEvent event = QOIEvent.start("QOIEncoder.qoiFile");
+        long start = out.written();
+        encodeFile(image, new int[64], out);
+        event.finish(image.width(), image.height(), image.channels(), out.written() - start);
+    }
+
+    /**
+     * Stream the "Quite Ok Image" file of the image (header, chunks and EOF) to the given channel
+     *
+     * @param image   (Helper.FlatImage) - Image to encode
+     * @param channel (WritableByteChannel) - Where to write the file
+     * @throws IOException if the channel cannot be written
+     * @throws AssertionError if the image or the channel is null
+     * @apiNote The channel is not closed
+     */
+    public static void qoiFile(Helper.FlatImage image, WritableByteChannel channel) throws IOException {
+        assert image != null;
+        assert channel != null;
+
+        stream(out -> qoiFile(image, out), channel);
+    }
+
+    /**
+     * Number of pixels copied in the heap at a time when the image is stored off the heap
+     */
+    private static final int SCRATCH_PIXELS = 1 << 16;
+
+    /**
+     * Write the "Quite Ok Image" file of pixels stored off the heap in the given buffer.
+     * Only a few rows at a time are copied in the heap, whatever the size of the image
+     *
+     * @param pixels (QOIPixels) - Pixels to encode
+     * @param out    (QOIBuffer) - Where to write the file, after what it already contains
+     * @throws AssertionError if the pixels or the buffer is null
+     * @throws IllegalStateException if the pixels are closed
+     */
+    public static void qoiFile(QOIPixels pixels, QOIBuffer out) {
+        assert pixels != null;
+        assert out != null;
+        assert pixels.channels() == 3 || pixels.channels() == 4;
+        assert pixels.color_space() == 0 || pixels.color_space() == 1;
+
+        QOIEvent event = QOIEvent.start("QOIEncoder.qoiFile");
+        long start = out.written();
+        int width = pixels.width();
+        int height = pixels.height();
+        out.write(qoiHeader(width, height, pixels.channels(), pixels.color_space()));
+
+        int rows = Math.max(1, SCRATCH_PIXELS / width);
+        int[] scratch = new int[rows * width];
+        int[] index = new int[64];
+        int previous = START_PIXEL;
+        int run = 0;
+        for (int y = 0; y < height; y += rows) {
+            int count = Math.min(rows, height - y);
+            for (int i = 0; i < count; ++i) {
+                pixels.readRow(y + i, scratch, i * width);
+            }
+            run = encodePixels(scratch, 0, count * width, previous, index, run, out);
+            previous = scratch[count * width - 1];
+        }
+        if (run > 0) {
+            out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+        }
+        out.write(QOISpecification.QOI_EOF);
+        event.finish(width, height, pixels.channels(), out.written() - start);
+    }
+
+    /**
+     * Stream the "Quite Ok Image" file of pixels stored off the heap to the given channel.
+     * Neither the pixels nor the file are ever held in the heap
+     *
+     * @param pixels  (QOIPixels) - Pixels to encode
+     * @param channel (WritableByteChannel) - Where to write the file
+     * @throws IOException if the channel cannot be written
+     * @throws AssertionError if the pixels or the channel is null
+     * @throws IllegalStateException if the pixels are closed
+     * @apiNote The channel is not closed
+     */
+    public static void qoiFile(QOIPixels pixels, WritableByteChannel channel) throws IOException {
+        assert pixels != null;
+        assert channel != null;
+
+        stream(out -> qoiFile(pixels, out), channel);
+    }
+
+    /**
+     * Write the "Quite Ok Image" file of the image in the given buffer, and build its index on the way :
+     * the state of the encoder is recorded in front of every band of rows rows.
+     *
+     * @param image (Helper.FlatImage) - Image to encode
+     * @param out   (QOIBuffer) - Where to write the file, after what it already contains
+     * @param rows  (int) - Number of rows between two checkpoints of the index
+     * @return (QOIIndex) - Index of the file, its offsets being relative to the beginning of the file
+     * @throws AssertionError if the image or the buffer is null, or if rows is not positive
+     * @apiNote Writes exactly the same bytes as qoiFile(image, out)
+     */
+    public static QOIIndex qoiFileIndexed(Helper.FlatImage image, QOIBuffer out, int rows) {
+        assert image != null;
+        assert out != null;
+        assert rows > 0;
+
+        long start = out.written();
+        out.write(qoiHeader(image));
+
+        int width = image.width();
+        int height = image.height();
+        QOIIndex.Checkpoint[] checkpoints = new QOIIndex.Checkpoint[QOIIndex.bands(height, rows)];
+        int[] index = new int[64];
+        int previous = START_PIXEL;
+        int run = 0;
+        for (int band = 0; band < checkpoints.length; ++band) {
+            int from = band * rows;
+            int to = Math.min(from + rows, height);
+            if (run > 0 && image.pixel(0, from) != previous) {
+                // The run ends with the band : write it now, as encodePixels would at the next pixel
+                out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+                run = 0;
+            }
+            // A run still open goes on in the band : the checkpoint is placed in front of it
+            checkpoints[band] = new QOIIndex.Checkpoint(out.written() - start, (long) from * width - run,
+                    previous, index.clone());
+            run = encodeRows(image, from, to, previous, index, run, out);
+            previous = image.pixel(width - 1, to - 1);
+        }
+        if (run > 0) {
+            out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+        }
+        out.write(QOISpecification.QOI_EOF);
+        return new QOIIndex(width, height, rows, checkpoints);
+    }
+
+    /**
+     * Stream the "Quite Ok Image" file of the image to the given channel, and build its index on the way
+     *
+     * @param image   (Helper.FlatImage) - Image to encode
+     * @param channel (WritableByteChannel) - Where to write the file
+     * @param rows    (int) - Number of rows between two checkpoints of the index
+     * @return (QOIIndex) - Index of the file
+     * @throws IOException if the channel cannot be written
+     * @throws AssertionError if the image or the channel is null, or if rows is not positive
+     * @apiNote The channel is not closed
+     */
+    public static QOIIndex qoiFileIndexed(Helper.FlatImage image, WritableByteChannel channel, int rows)
+            throws IOException {
+        assert image != null;
+        assert channel != null;
+
+        QOIIndex[] index = new QOIIndex[1];
+        stream(out -> index[0] = qoiFileIndexed(image, out, rows), channel);
+        return index[0];
+    }
+
+    /**
+     * Run the given encoding on a buffer attached to the channel, then flush it
+     */
+    private static void stream(Consumer<QOIBuffer> encoding, WritableByteChannel channel) throws IOException {
+        QOIBuffer out = new QOIBuffer(channel, STREAM_BUFFER_SIZE);
+        try {
+            encoding.accept(out);
+            out.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Count the pixels of an image, used as a first guess for the size of its encoding
+     */
+    private static int pixelCount(int[][] image) {
+        long count = 0;
+        for (int[] row : image) {
+            count += row.length;
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE - 8);
+    }
+
+    // ==================================================================================
+    // ============================= PARALLEL ENCODING METHODS ==========================
+    // ==================================================================================
+
+    /**
+     * Minimal number of pixels encoded by one task of the parallel encoder
+     */
+    private static final int MIN_SEGMENT_SIZE = 1 << 15;
+
+    /**
+     * Encode the given pixels using the "Quite Ok Image" Protocol on all the threads of the common pool
+     *
+     * @param pixels (int[]) - ARGB pixels, row after row
+     * @return (byte[]) - "Quite Ok Image" representation of the pixels
+     * @throws AssertionError if pixels is null
+     * @see #encodeDataParallel(int[], ForkJoinPool)
+     */
+    public static byte[] encodeDataParallel(int[] pixels) {
+        return encodeDataParallel(pixels, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encode the given pixels using the "Quite Ok Image" Protocol, several segments at the same time.
+     * <p>
+     * The segments are cut in front of a pixel that differs from its predecessor, so that no
+     * QOI_OP_RUN crosses a cut. Each segment then only needs the state the sequential encoder
+     * would have when reaching it : the previous pixel is the one in front of the cut, and each slot
+     * of the hash table holds the last pixel with that hash in the preceding segments
+     * (the pixels equal to START_PIXEL at the very beginning of the image never enter the table).
+     *
+     * @param pixels (int[]) - ARGB pixels, row after row
+     * @param pool   (ForkJoinPool) - Threads to use
+     * @return (byte[]) - "Quite Ok Image" representation of the pixels, the same as encodeData(pixels)
+     * @throws AssertionError if pixels or pool is null
+     */
+    public static byte[] encodeDataParallel(int[] pixels, ForkJoinPool pool) {
+        assert pixels != null;
+        assert pool != null;
+
+        int[] cuts = segments(pixels, pool.getParallelism() * 4);
+        int count = cuts.length - 1;
+        if (count < 2) {
+            return encodeData(pixels);
+        }
+
+        // First pass : last pixel of each hash in each segment
+        int start = leadingStartPixels(pixels);
+        int[][] lasts = new int[count][];
+        long[] found = new long[count];
+        List<Callable<Void>> scans = new ArrayList<>(count);
+        for (int s = 0; s < count; ++s) {
+            int segment = s;
+            scans.add(() -> {
+                lasts[segment] = new int[64];
+                found[segment] = lastPixels(pixels, Math.max(start, cuts[segment]), cuts[segment + 1], lasts[segment]);
+                return null;
+            });
+        }
+        invokeAll(pool, scans);
+
+        // Second pass : encode each segment from the state left by the previous ones
+        QOIBuffer[] outputs = new QOIBuffer[count];
+        List<Callable<Void>> encodings = new ArrayList<>(count);
+        int[] index = new int[64];
+        for (int s = 0; s < count; ++s) {
+            int segment = s;
+            int[] seed = index.clone();
+            encodings.add(() -> {
+                int from = cuts[segment];
+                int to = cuts[segment + 1];
+                int previous = from == 0 ? START_PIXEL : pixels[from - 1];
+                QOIBuffer out = new QOIBuffer(Math.max(64, to - from));
+                int run = encodePixels(pixels, from, to, previous, seed, 0, out);
+                if (run > 0) {
+                    out.write(QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+                }
+                outputs[segment] = out;
+                return null;
+            });
+            for (int slot = 0; slot < 64; ++slot) {
+                if ((found[s] & (1L << slot)) != 0) {
+                    index[slot] = lasts[s][slot];
+                }
+            }
+        }
+        invokeAll(pool, encodings);
+
+        long length = 0;
+        for (QOIBuffer out : outputs) {
+            length += out.position();
+        }
+        assert length <= Integer.MAX_VALUE - 8;
+        byte[] encoding = new byte[(int) length];
+        int position = 0;
+        for (QOIBuffer out : outputs) {
+            System.arraycopy(out.array(), 0, encoding, position, out.position());
+            position += out.position();
+        }
+        return encoding;
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file, encoding the image
+     * on all the threads of the common pool
+     *
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image, the same as qoiFile(image)
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFileParallel(Helper.Image image) {
+        assert image != null;
+
+        byte[] head = qoiHeader(image);
+        byte[] body = encodeDataParallel(ArrayUtils.flatten(image.data()));
         return ArrayUtils.concat(head, body, QOISpecification.QOI_EOF);
     }
 
-}
\ No newline at end of file
+    /**
+     * Cut the pixels in about count segments, each cut being placed in front of
+     * a pixel different from its predecessor
+     *
+     * @return (int[]) - Bounds of the segments, starting with 0 and ending with pixels.length
+     */
+    private static int[] segments(int[] pixels, int count) {
+        count = Math.max(1, Math.min(count, pixels.length / MIN_SEGMENT_SIZE));
+        int[] cuts = new int[count + 1];
+        int size = 1;
+        for (int s = 1; s < count; ++s) {
+            int cut = Math.max((int) ((long) pixels.length * s / count), cuts[size - 1] + 1);
+            while (cut < pixels.length && pixels[cut] == pixels[cut - 1]) {
+                ++cut;
+            }
+            if (cut < pixels.length) {
+                cuts[size++] = cut;
+            }
+        }
+        cuts[size++] = pixels.length;
+        return Arrays.copyOf(cuts, size);
+    }
+
+    /**
+     * @return (int) - Number of pixels equal to START_PIXEL at the beginning of pixels
+     */
+    private static int leadingStartPixels(int[] pixels) {
+        int i = 0;
+        while (i < pixels.length && pixels[i] == START_PIXEL) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Find, for each hash, the last pixel of [from, to) with that hash
+     *
+     * @param lasts (int[]) - Where to store the pixels, indexed by hash
+     * @return (long) - Mask of the hashes found
+     */
+    private static long lastPixels(int[] pixels, int from, int to, int[] lasts) {
+        long found = 0;
+        for (int i = to - 1; i >= from && found != -1L; --i) {
+            int hash = QOISpecification.hash(pixels[i]);
+            if ((found & (1L << hash)) == 0) {
+                found |= 1L << hash;
+                lasts[hash] = pixels[i];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Run all the tasks in the pool and wait for them
+     */
+    private static void invokeAll(ForkJoinPool pool, List<Callable<Void>> tasks) {
+        for (var task : pool.invokeAll(tasks)) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                Helper.fail("Parallel encoding failed : %s", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Helper.fail("Parallel encoding interrupted");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package cs107;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event marking one stage of a conversion (reading, converting, encoding,
+ * decoding or writing an image), so that a recording shows where the time of a conversion goes.
+ * When no recording is running, beginning and ending an event costs next to nothing.
+ * @apiNote Enable with -XX:StartFlightRecording, the events are named "cs107.Stage"
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+@Name("cs107.Stage")
+@Label("Conversion Stage")
+@Category({"cs107", "Quite Ok Image"})
+@Description("One stage of the conversion of an image")
+@StackTrace(false)
+public final class QOIEvent extends Event {
+
+    @Label("Stage")
+    @Description("Method running the stage")
+    String stage;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Channels")
+    byte channels;
+
+    @Label("Bytes")
+    @Description("Bytes read or produced by the stage")
+    @DataAmount
+    long bytes;
+
+    private QOIEvent(){}
+
+    /**
+     * Start timing a stage
+     * @param stage (String) - Name of the stage
+     * @return (QOIEvent) - The started event
+     */
+    static QOIEvent start(String stage){
+        var event = new QOIEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stop timing the stage and commit the event if it is recorded
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (int) - Number of channels of the image
+     * @param bytes (long) - Bytes read or produced by the stage
+     */
+    void finish(int width, int height, int channels, long bytes){
+        end();
+        if (shouldCommit()){
+            this.width = width;
+            this.height = height;
+            this.channels = (byte) channels;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    /**
+     * Stop timing a stage that handles bytes rather than an image, and commit the event if it is recorded.
+     * The width, the height and the channels of the event are left unset
+     * @param bytes (long) - Bytes read or produced by the stage
+     */
+    void finish(long bytes){
+        end();
+        if (shouldCommit()){
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package cs107;
+
+/**
+ * Thrown when the content given to the checked decoding methods of QOIDecoder
+ * is not a valid "Quite Ok Image" file, or describes an image bigger than allowed.
+ * Unlike the assertions of the other decoding methods, it does not depend on -ea.
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIFormatException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message (String) - What is wrong with the content
+     */
+    public QOIFormatException(String message){
+        super(message);
+    }
+
+}
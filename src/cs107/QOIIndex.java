@@ -0,0 +1,335 @@
+package cs107;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sidecar index of a "Quite Ok Image" file. Every chunk depends on the previous pixel and on
+ * the hash table, so a standard file can only be decoded from its beginning. The index stores,
+ * every few rows, a checkpoint of the decoder state : decoding can then start at any checkpoint,
+ * and several threads can decode the bands of one file at the same time.
+ * The "Quite Ok Image" file itself is left unchanged.
+ * @apiNote An index is built while encoding (QOIEncoder::qoiFileIndexed) or by scanning
+ * an existing file once (scan), and is stored next to the file (sidecar)
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIIndex {
+
+    /**
+     * Default number of rows between two checkpoints
+     */
+    public static final int DEFAULT_ROWS = 64;
+
+    /**
+     * Magic number of an index file
+     */
+    private static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'x'};
+
+    /**
+     * Extension of the index file stored next to a "Quite Ok Image" file
+     */
+    private static final String EXTENSION = ".qoix";
+
+    /**
+     * Size in an index file of its header : magic number, width, height and rows
+     */
+    private static final int HEADER_BYTES = MAGIC.length + 3 * 4;
+
+    /**
+     * Size in an index file of a checkpoint : offset, pixel, previous pixel and hash table
+     */
+    private static final int CHECKPOINT_BYTES = 8 + 8 + 4 + 64 * 4;
+
+    /**
+     * Longest QOI_OP_RUN : a checkpoint is at most that many pixels before its band
+     */
+    private static final int MAX_RUN = 62;
+
+    /**
+     * State of the decoder in front of a chunk. When the first pixel of a band
+     * is inside a QOI_OP_RUN, the checkpoint is placed in front of that run :
+     * the pixels before the band are then decoded again and dropped.
+     * @param offset (long) - Index in the file of the chunk
+     * @param pixel (long) - Index of the first pixel of the chunk
+     * @param previous (int) - Pixel preceding the chunk
+     * @param index (int[]) - Hash table in front of the chunk, 64 pixels
+     */
+    public record Checkpoint(long offset, long pixel, int previous, int[] index){
+        public Checkpoint {
+            assert offset >= QOISpecification.HEADER_SIZE;
+            assert pixel >= 0;
+            assert index != null && index.length == 64;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Checkpoint cp){
+                return (offset == cp.offset) && (pixel == cp.pixel)
+                        && (previous == cp.previous) && Arrays.equals(index, cp.index);
+            }else
+                return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(offset) * 31 + Arrays.hashCode(index);
+        }
+    }
+
+    private final int width;
+
+    private final int height;
+
+    private final int rows;
+
+    private final Checkpoint[] checkpoints;
+
+    /**
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param rows (int) - Number of rows between two checkpoints
+     * @param checkpoints (Checkpoint[]) - Checkpoint of the rows 0, rows, 2 * rows, ...
+     */
+    QOIIndex(int width, int height, int rows, Checkpoint[] checkpoints){
+        assert width > 0 && height > 0;
+        assert rows > 0;
+        assert checkpoints != null && checkpoints.length == bands(height, rows);
+        this.width = width;
+        this.height = height;
+        this.rows = rows;
+        this.checkpoints = checkpoints;
+    }
+
+    // ============================================================================================
+    // ===================================== INDEX API ============================================
+    // ============================================================================================
+
+    /**
+     * Build the index of an existing "Quite Ok Image" file, decoding it once, with a checkpoint every DEFAULT_ROWS rows
+     * @param content (byte[]) - Content of the file
+     * @return (QOIIndex) - Index of the file
+     * @throws AssertionError if content is null or the file is truncated
+     */
+    public static QOIIndex scan(byte[] content){
+        return scan(content, DEFAULT_ROWS);
+    }
+
+    /**
+     * Build the index of an existing "Quite Ok Image" file, decoding it once
+     * @param content (byte[]) - Content of the file
+     * @param rows (int) - Number of rows between two checkpoints
+     * @return (QOIIndex) - Index of the file
+     * @throws AssertionError if content is null, rows is not positive or the file is truncated
+     */
+    public static QOIIndex scan(byte[] content, int rows){
+        assert content != null;
+        content = QOIArchive.unwrap(content);
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        assert rows > 0;
+
+        var header = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+        var width = header[0];
+        var height = header[1];
+        var end = content.length - QOISpecification.QOI_EOF.length;
+
+        var checkpoints = new Checkpoint[bands(height, rows)];
+        var cursor = new QOIDecoder.Cursor();
+        var row = new int[width];
+        var idx = QOISpecification.HEADER_SIZE;
+        for (var y = 0; y < height; ++y){
+            if (y % rows == 0){
+                if (cursor.run > 0){
+                    // The band starts inside the run just decoded
+                    var run = (content[idx - 1] & 0b11_11_11) + 1;
+                    checkpoints[y / rows] = new Checkpoint(idx - 1, cursor.pixel - (run - cursor.run),
+                            cursor.previous, cursor.index.clone());
+                } else {
+                    checkpoints[y / rows] = new Checkpoint(idx, cursor.pixel, cursor.previous, cursor.index.clone());
+                }
+            }
+            idx = QOIDecoder.decodePixels(content, idx, end, cursor, row, 0, width);
+            assert cursor.pixel == (long) (y + 1) * width;
+        }
+        return new QOIIndex(width, height, rows, checkpoints);
+    }
+
+    /**
+     * @param file (Path) - Path to a "Quite Ok Image" file
+     * @return (Path) - Path of its index file, in the same folder
+     */
+    public static Path sidecar(Path file){
+        assert file != null;
+        return file.resolveSibling(file.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Read the index file of an image. Nothing is allocated before the index is checked against
+     * the header of the image and the size of the index file
+     * @param path (Path) - Path to the index file
+     * @param header (QOIDecoder.Header) - Header of the indexed image, see QOIDecoder::probe
+     * @return (QOIIndex) - The index
+     * @throws IOException if the file cannot be read, is not an index file or is not the index of that image
+     * @throws QOIFormatException if a checkpoint cannot be the one of its band, see check(long)
+     * for the checks against the file itself
+     */
+    public static QOIIndex read(Path path, QOIDecoder.Header header) throws IOException {
+        assert path != null && header != null;
+        var size = Files.size(path);
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))){
+            var magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic)){
+                throw new IOException("Not a \"Quite Ok Image\" index file");
+            }
+            var width = input.readInt();
+            var height = input.readInt();
+            var rows = input.readInt();
+            if (width != header.width() || height != header.height()){
+                throw new IOException(String.format(Locale.ROOT, "Index of a %dx%d image, not of a %dx%d one",
+                        width, height, header.width(), header.height()));
+            }
+            if (rows <= 0){
+                throw new IOException("Invalid \"Quite Ok Image\" index header : " + rows + " rows per band");
+            }
+            var bands = bands(height, rows);
+            if (size != HEADER_BYTES + (long) bands * CHECKPOINT_BYTES){
+                throw new IOException(String.format(Locale.ROOT,
+                        "Truncated or corrupted \"Quite Ok Image\" index : %d bytes for %d checkpoints", size, bands));
+            }
+            var checkpoints = new Checkpoint[bands];
+            for (var i = 0; i < checkpoints.length; ++i){
+                var offset = input.readLong();
+                var pixel = input.readLong();
+                var previous = input.readInt();
+                var index = new int[64];
+                for (var slot = 0; slot < index.length; ++slot){
+                    index[slot] = input.readInt();
+                }
+                // In front of the first pixel of the band, or of the run holding it
+                var first = (long) i * rows * width;
+                if (offset < QOISpecification.HEADER_SIZE || pixel > first || pixel <= first - MAX_RUN
+                        || i > 0 && offset < checkpoints[i - 1].offset){
+                    throw new QOIFormatException("Invalid \"Quite Ok Image\" index checkpoint " + i);
+                }
+                checkpoints[i] = new Checkpoint(offset, pixel, previous, index);
+            }
+            return new QOIIndex(width, height, rows, checkpoints);
+        }
+    }
+
+    /**
+     * Write the index in a file
+     * @param path (Path) - Where to write the index, usually sidecar(path of the image)
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        assert path != null;
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))){
+            output.write(MAGIC);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(rows);
+            for (var checkpoint : checkpoints){
+                output.writeLong(checkpoint.offset);
+                output.writeLong(checkpoint.pixel);
+                output.writeInt(checkpoint.previous);
+                for (var pixel : checkpoint.index){
+                    output.writeInt(pixel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that every checkpoint is in front of a chunk of the indexed file
+     * @param dataEnd (long) - Index in the file of its end marker, where the chunks end
+     * @throws QOIFormatException if a checkpoint is beyond the chunks : the index is not the one of that file
+     */
+    public void check(long dataEnd){
+        for (var i = 0; i < checkpoints.length; ++i){
+            if (checkpoints[i].offset >= dataEnd){
+                throw new QOIFormatException(String.format(Locale.ROOT,
+                        "Checkpoint %d of the index at %d, after the chunks ending at %d", i, checkpoints[i].offset, dataEnd));
+            }
+        }
+    }
+
+    /**
+     * @param row (int) - Index of a row
+     * @return (Checkpoint) - Last checkpoint in front of the first pixel of the row
+     */
+    public Checkpoint checkpoint(int row){
+        assert row >= 0 && row < height;
+        return checkpoints[row / rows];
+    }
+
+    /**
+     * @return (int) - Number of checkpoints, one for each band of rows() rows
+     */
+    public int bands(){
+        return checkpoints.length;
+    }
+
+    /**
+     * @return (int) - Width of the indexed image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the indexed image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (int) - Number of rows between two checkpoints
+     */
+    public int rows(){
+        return rows;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof QOIIndex idx){
+            return (width == idx.width) && (height == idx.height) && (rows == idx.rows)
+                    && Arrays.equals(checkpoints, idx.checkpoints);
+        }else
+            return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(checkpoints);
+    }
+
+    // ============================================================================================
+
+    /**
+     * @return (int) - Number of bands of rows rows covering height rows, without overflowing
+     */
+    static int bands(int height, int rows){
+        return (height - 1) / rows + 1;
+    }
+
+    /**
+     * @param row (int) - Index of a row
+     * @return (QOIDecoder.Cursor) - Decoder state at the last checkpoint in front of the row
+     */
+    QOIDecoder.Cursor cursor(int row){
+        var checkpoint = checkpoint(row);
+        return new QOIDecoder.Cursor(checkpoint.pixel, checkpoint.previous, 0, checkpoint.index);
+    }
+
+}
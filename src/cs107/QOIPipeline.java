@@ -0,0 +1,482 @@
+package cs107;
+
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Convert whole directory trees in three overlapping stages : the files are read asynchronously,
+ * converted by a pool of workers, then written asynchronously. The stages are connected by bounded queues,
+ * so a slow stage holds back the ones in front of it instead of letting the files pile up in memory,
+ * and the disk keeps reading and writing while the workers convert.
+ * @apiNote Usage : java cs107.QOIPipeline (png2qoi | qoi2png) input_folder output_folder [workers] [capacity]
+ * where workers defaults to the number of processors and capacity, the size of each queue, to 16
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIPipeline {
+
+    /**
+     * DO NOT CHANGE THIS, MORE ON THAT IN WEEK 7.
+     */
+    private QOIPipeline(){}
+
+    /**
+     * Default size of the queues, and number of reads and writes in flight
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Activity of one stage of a pipeline
+     * @param name (String) - name of the stage
+     * @param parallelism (int) - number of files the stage can handle at the same time
+     * @param items (long) - number of files handled
+     * @param busyNanos (long) - time spent handling files, summed over all of them
+     * @param blockedNanos (long) - time the stage waited for room further down the pipeline
+     * @param queueCapacity (int) - size of the queue feeding the stage, 0 for the first stage
+     * @param averageDepth (double) - average number of files in that queue, sampled at each arrival
+     * @param maxDepth (int) - maximal number of files in that queue
+     * @param elapsedNanos (long) - duration of the whole conversion
+     */
+    public record StageStats(String name, int parallelism, long items, long busyNanos, long blockedNanos,
+                             int queueCapacity, double averageDepth, int maxDepth, long elapsedNanos){
+
+        /**
+         * @return (double) - Share of the capacity of the stage used during the conversion
+         */
+        public double utilisation(){
+            return busyNanos / ((double) parallelism * Math.max(elapsedNanos, 1));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-7s %6d files, utilisation %5.1f%% of %d, blocked %.3f s, queue %.1f on average, %d at most (of %d)",
+                    name, items, 100 * utilisation(), parallelism, blockedNanos / 1e9, averageDepth, maxDepth, queueCapacity);
+        }
+    }
+
+    /**
+     * Summary of a pipelined conversion
+     * @param totals (BatchConverter.Report) - what was converted, and how fast
+     * @param stages (List of StageStats) - activity of the read, convert and write stages
+     */
+    public record Report(BatchConverter.Report totals, List<StageStats> stages){
+
+        @Override
+        public String toString() {
+            var builder = new StringBuilder(totals.toString());
+            for (var stage : stages){
+                builder.append(System.lineSeparator()).append(stage);
+            }
+            return builder.toString();
+        }
+    }
+
+    // ============================================================================================
+    // ================================== PIPELINE API ============================================
+    // ============================================================================================
+
+    /**
+     * Entry point of the pipeline
+     * @param args (String[]) - direction, input folder, output folder, [workers], [capacity]
+     */
+    public static void main(String[] args){
+        if (args.length < 3 || args.length > 5){
+            System.err.println("Usage : java cs107.QOIPipeline (png2qoi | qoi2png) input_folder output_folder [workers] [capacity]");
+            System.exit(2);
+        }
+        var direction = switch (args[0]){
+            case "png2qoi" -> BatchConverter.Direction.PNG_TO_QOI;
+            case "qoi2png" -> BatchConverter.Direction.QOI_TO_PNG;
+            default -> Helper.<BatchConverter.Direction>fail("Unknown direction : %s", args[0]);
+        };
+        var workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        var capacity = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_CAPACITY;
+        System.out.println(convert(Path.of(args[1]), Path.of(args[2]), direction, workers, capacity));
+    }
+
+    /**
+     * Convert all the files of a directory tree. The output tree mirrors the input one
+     * @param input (Path) - Folder to convert
+     * @param output (Path) - Folder where to store the converted files
+     * @param direction (BatchConverter.Direction) - Direction of the conversion
+     * @param workers (int) - Number of threads converting the files
+     * @param capacity (int) - Size of each queue, and maximal number of reads and of writes in flight
+     * @return (Report) - Summary of the conversion
+     * @throws AssertionError if one of the parameters is null or invalid
+     */
+    public static Report convert(Path input, Path output, BatchConverter.Direction direction, int workers, int capacity){
+        assert input != null && output != null && direction != null;
+        assert workers > 0;
+        assert capacity > 0;
+
+        var start = System.nanoTime();
+        var jobs = BatchConverter.jobs(input, output, direction);
+        var run = new Run(direction, workers, capacity);
+
+        var pool = Executors.newFixedThreadPool(workers + 1);
+        try {
+            for (var i = 0; i < workers; ++i){
+                pool.execute(run::convertLoop);
+            }
+            var writer = pool.submit(run::writeLoop);
+            run.readAll(jobs);
+            writer.get();
+        } catch (Exception e){
+            Helper.fail("Pipelined conversion interrupted : %s", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        var elapsed = System.nanoTime() - start;
+        var totals = new BatchConverter.Report(run.converted.get(), run.failures.get(), run.bytesRead.sum(),
+                run.bytesWritten.sum(), run.pixels.sum(), elapsed);
+        return new Report(totals, List.of(run.read.stats(elapsed), run.convert.stats(elapsed), run.write.stats(elapsed)));
+    }
+
+    // ============================================================================================
+
+    /**
+     * A file on its way through the pipeline : its content, read or converted
+     */
+    private record Item(BatchConverter.Job job, byte[] content, long pixels){}
+
+    /**
+     * Marks the end of a queue
+     */
+    private static final Item DONE = new Item(null, null, 0);
+
+    /**
+     * Counters of a stage, and the queue feeding it
+     */
+    private static final class Stage {
+
+        private final String name;
+
+        private final int parallelism;
+
+        private final BlockingQueue<Item> queue;
+
+        private final LongAdder items = new LongAdder();
+
+        private final LongAdder busy = new LongAdder();
+
+        private final LongAdder blocked = new LongAdder();
+
+        private final LongAdder depths = new LongAdder();
+
+        private final LongAdder samples = new LongAdder();
+
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        Stage(String name, int parallelism, int capacity){
+            this.name = name;
+            this.parallelism = parallelism;
+            this.queue = capacity == 0 ? null : new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Hand an item to this stage, waiting for room in its queue
+         * @param from (Stage) - Stage handing the item, blocked while the queue is full
+         */
+        void put(Stage from, Item item) throws InterruptedException {
+            var start = System.nanoTime();
+            queue.put(item);
+            from.blocked.add(System.nanoTime() - start);
+            var depth = queue.size();
+            depths.add(depth);
+            samples.increment();
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+
+        /**
+         * Record a handled file
+         */
+        void done(long start){
+            busy.add(System.nanoTime() - start);
+            items.increment();
+        }
+
+        StageStats stats(long elapsed){
+            var count = samples.sum();
+            return new StageStats(name, parallelism, items.sum(), busy.sum(), blocked.sum(),
+                    queue == null ? 0 : queue.remainingCapacity() + queue.size(),
+                    count == 0 ? 0 : (double) depths.sum() / count, maxDepth.get(), elapsed);
+        }
+    }
+
+    /**
+     * State of one conversion
+     */
+    private static final class Run {
+
+        private final BatchConverter.Direction direction;
+
+        private final int workers;
+
+        private final int capacity;
+
+        private final Stage read;
+
+        private final Stage convert;
+
+        private final Stage write;
+
+        /**
+         * Files being read or waiting to be converted
+         */
+        private final Semaphore reading;
+
+        /**
+         * Files being written
+         */
+        private final Semaphore writing;
+
+        private final AtomicInteger running;
+
+        private final AtomicInteger converted = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final LongAdder bytesRead = new LongAdder();
+
+        private final LongAdder bytesWritten = new LongAdder();
+
+        private final LongAdder pixels = new LongAdder();
+
+        Run(BatchConverter.Direction direction, int workers, int capacity){
+            this.direction = direction;
+            this.workers = workers;
+            this.capacity = capacity;
+            this.read = new Stage("read", capacity, 0);
+            this.convert = new Stage("convert", workers, capacity);
+            this.write = new Stage("write", capacity, capacity);
+            this.reading = new Semaphore(capacity);
+            this.writing = new Semaphore(capacity);
+            this.running = new AtomicInteger(workers);
+        }
+
+        // ===================================== READ =============================================
+
+        /**
+         * Start reading every file, never more than capacity of them being read or waiting to be converted,
+         * then close the queue of the workers once all the reads are over
+         */
+        void readAll(List<BatchConverter.Job> jobs) throws InterruptedException {
+            var pending = new Phaser(1);
+            for (var job : jobs){
+                var start = System.nanoTime();
+                reading.acquire();
+                read.blocked.add(System.nanoTime() - start);
+                pending.register();
+                readAsync(job, pending);
+            }
+            pending.arriveAndAwaitAdvance();
+            for (var i = 0; i < workers; ++i){
+                convert.queue.put(DONE);
+            }
+        }
+
+        /**
+         * Read a whole file asynchronously, then hand it to the workers. Never blocks :
+         * the permit of reading guarantees some room in their queue
+         */
+        private void readAsync(BatchConverter.Job job, Phaser pending){
+            var start = System.nanoTime();
+            try {
+                var channel = AsynchronousFileChannel.open(job.source(), StandardOpenOption.READ);
+                var size = channel.size();
+                if (size > Integer.MAX_VALUE - 8){
+                    channel.close();
+                    throw new IOException("File too big : " + size + " bytes");
+                }
+                var buffer = ByteBuffer.allocate((int) size);
+                channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>(){
+                    @Override
+                    public void completed(Integer count, Void attachment){
+                        if (count >= 0 && buffer.hasRemaining()){
+                            channel.read(buffer, buffer.position(), null, this);
+                            return;
+                        }
+                        close(channel);
+                        if (buffer.hasRemaining()){
+                            failed(new IOException("File truncated while reading"), null);
+                            return;
+                        }
+                        try {
+                            bytesRead.add(size);
+                            read.done(start);
+                            convert.put(read, new Item(job, buffer.array(), 0));
+                        } catch (InterruptedException e){
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            pending.arriveAndDeregister();
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable e, Void attachment){
+                        close(channel);
+                        fail(job, e);
+                        reading.release();
+                        pending.arriveAndDeregister();
+                    }
+                });
+            } catch (IOException | RuntimeException e){
+                fail(job, e);
+                reading.release();
+                pending.arriveAndDeregister();
+            }
+        }
+
+        // ==================================== CONVERT ===========================================
+
+        /**
+         * Convert files until the queue is closed, then close the queue of the writer if this is the last worker
+         */
+        void convertLoop(){
+            try {
+                for (var item = convert.queue.take(); item != DONE; item = convert.queue.take()){
+                    reading.release();
+                    var start = System.nanoTime();
+                    Item result;
+                    try {
+                        result = convert(item);
+                    } catch (Throwable e){
+                        // Even an OutOfMemoryError on one huge image only fails that file
+                        fail(item.job(), e);
+                        continue;
+                    }
+                    convert.done(start);
+                    write.put(convert, result);
+                }
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            } finally {
+                // Whatever stopped this worker, the writer must not wait for it
+                if (running.decrementAndGet() == 0){
+                    try {
+                        write.queue.put(DONE);
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Convert the content of a file, with the codec of the worker
+         */
+        private Item convert(Item item) throws IOException {
+            var codec = QOICodec.local();
+            Helper.FlatImage image;
+            byte[] content;
+            if (direction == BatchConverter.Direction.PNG_TO_QOI){
+                try (var stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(item.content()))){
+                    // Same budget as the "Quite Ok Image" files decoded by the codec
+                    image = Helper.toFlatImage(Helper.readImage(stream, QOIDecoder.DEFAULT_MAX_PIXELS));
+                }
+                var encoded = codec.encode(image);
+                // The buffer of the codec is reused by the next file
+                content = Arrays.copyOf(encoded.array(), encoded.position());
+            } else {
+                image = codec.decode(item.content());
+                var png = new ByteArrayOutputStream(item.content().length);
+                Helper.writePng(Helper.toBufferedImage(image), png);
+                content = png.toByteArray();
+            }
+            return new Item(item.job(), content, (long) image.width() * image.height());
+        }
+
+        // ===================================== WRITE ============================================
+
+        /**
+         * Start writing the converted files, never more than capacity at the same time,
+         * until the queue is closed, then wait for the last writes
+         */
+        Void writeLoop() throws InterruptedException {
+            for (var item = write.queue.take(); item != DONE; item = write.queue.take()){
+                var start = System.nanoTime();
+                writing.acquire();
+                write.blocked.add(System.nanoTime() - start);
+                writeAsync(item);
+            }
+            writing.acquire(capacity);
+            return null;
+        }
+
+        /**
+         * Write a whole file asynchronously
+         */
+        private void writeAsync(Item item){
+            var start = System.nanoTime();
+            var job = item.job();
+            try {
+                Files.createDirectories(job.target().getParent());
+                var channel = AsynchronousFileChannel.open(job.target(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                var buffer = ByteBuffer.wrap(item.content());
+                channel.write(buffer, 0, null, new CompletionHandler<Integer, Void>(){
+                    @Override
+                    public void completed(Integer count, Void attachment){
+                        if (buffer.hasRemaining()){
+                            channel.write(buffer, buffer.position(), null, this);
+                            return;
+                        }
+                        close(channel);
+                        bytesWritten.add(item.content().length);
+                        pixels.add(item.pixels());
+                        converted.incrementAndGet();
+                        write.done(start);
+                        writing.release();
+                    }
+
+                    @Override
+                    public void failed(Throwable e, Void attachment){
+                        close(channel);
+                        fail(job, e);
+                        writing.release();
+                    }
+                });
+            } catch (IOException | RuntimeException e){
+                fail(job, e);
+                writing.release();
+            }
+        }
+
+        // ========================================================================================
+
+        private void fail(BatchConverter.Job job, Throwable e){
+            failures.incrementAndGet();
+            System.err.printf("Cannot convert \"%s\" : %s%n", job.source(), e.getMessage());
+        }
+
+        private static void close(AsynchronousFileChannel channel){
+            try {
+                channel.close();
+            } catch (IOException e){
+                // Nothing was lost : the content is already read or written
+            }
+        }
+    }
+
+}
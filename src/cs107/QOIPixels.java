@@ -0,0 +1,328 @@
+package cs107;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Pixels of an image stored off the heap, packed as RGBA bytes row after row.
+ * A very large image then takes a handful of objects on the heap whatever its size,
+ * so the garbage collector never has to scan nor move its pixels.
+ * The memory is released as soon as the pixels are closed, not when they are collected.
+ * @apiNote The pixels are split in blocks of at most 1 GiB of whole rows, so an image
+ * may take more memory than a ByteBuffer can hold. The memory is limited by -XX:MaxDirectMemorySize.
+ * Closing waits for the accesses in progress, and any access after it throws IllegalStateException :
+ * the released memory is never touched. Each access takes a lock, so copy whole rows (readRow, writeRow)
+ * rather than single pixels. Releasing the memory at once relies on sun.misc.Unsafe (module jdk.unsupported) :
+ * it is best effort, and on a JDK that blocks it the memory is only released when the pixels are collected
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIPixels implements AutoCloseable {
+
+    /**
+     * Bytes of a pixel
+     */
+    public static final int PIXEL_SIZE = 4;
+
+    /**
+     * Maximal size of a block of rows
+     */
+    private static final int BLOCK_SIZE = 1 << 30;
+
+    /**
+     * Releases the memory of a direct buffer, null when the JDK does not allow it
+     */
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private final int width;
+
+    private final int height;
+
+    private final byte channels;
+
+    private final byte color_space;
+
+    /**
+     * Rows in each block, the last block may have fewer
+     */
+    private final int blockRows;
+
+    /**
+     * Blocks of rows seen as big endian integers, one RGBA pixel each. Null once closed
+     */
+    private IntBuffer[] blocks;
+
+    private ByteBuffer[] memory;
+
+    /**
+     * Read locked by each access to the blocks, write locked by close
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Allocate the pixels of an image, all transparent black
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param color_space (byte) - Color space of the image
+     * @throws RuntimeException if the dimensions are not positive or a row is bigger than a block
+     * @throws OutOfMemoryError if there is not enough direct memory left
+     */
+    public QOIPixels(int width, int height, byte channels, byte color_space){
+        if (width <= 0 || height <= 0 || width > BLOCK_SIZE / PIXEL_SIZE){
+            Helper.fail("Cannot store an image of %dx%d pixels off the heap", width, height);
+        }
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.color_space = color_space;
+        this.blockRows = Math.min(height, BLOCK_SIZE / (PIXEL_SIZE * width));
+        var count = (height + blockRows - 1) / blockRows;
+        this.memory = new ByteBuffer[count];
+        this.blocks = new IntBuffer[count];
+        try {
+            for (var i = 0; i < count; ++i){
+                var rows = Math.min(blockRows, height - i * blockRows);
+                memory[i] = ByteBuffer.allocateDirect(rows * width * PIXEL_SIZE).order(ByteOrder.BIG_ENDIAN);
+                blocks[i] = memory[i].asIntBuffer();
+            }
+        } catch (OutOfMemoryError e){
+            close();
+            throw e;
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== PIXELS API ===========================================
+    // ============================================================================================
+
+    /**
+     * Copy an image off the heap
+     * @param image (Helper.FlatImage) - Image to copy
+     * @return (QOIPixels) - Pixels of the image, to be closed by the caller
+     * @throws AssertionError if the image is null
+     */
+    public static QOIPixels of(Helper.FlatImage image){
+        assert image != null;
+        var pixels = new QOIPixels(image.width(), image.height(), image.channels(), image.color_space());
+        for (var y = 0; y < image.height(); ++y){
+            pixels.writeRow(y, image.data(), image.offset() + y * image.stride());
+        }
+        return pixels;
+    }
+
+    /**
+     * Copy the pixels back in the heap
+     * @return (Helper.FlatImage) - Image of the pixels
+     * @throws ArithmeticException if the image has too many pixels for one array
+     */
+    public Helper.FlatImage toFlatImage(){
+        var data = new int[Math.multiplyExact(width, height)];
+        for (var y = 0; y < height; ++y){
+            readRow(y, data, y * width);
+        }
+        return new Helper.FlatImage(data, width, height, channels, color_space);
+    }
+
+    /**
+     * Copy a row of pixels in an array
+     * @param y (int) - Index of the row
+     * @param dst (int[]) - Where to store the ARGB pixels of the row
+     * @param offset (int) - Index in dst of the first pixel of the row
+     * @throws IllegalStateException if the pixels are closed
+     * @throws AssertionError if the row is outside the image or dst is too short
+     */
+    public void readRow(int y, int[] dst, int offset){
+        assert dst != null && offset >= 0 && dst.length - offset >= width;
+        var stamp = open();
+        try {
+            block(y).get(position(y), dst, offset, width);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (var i = offset; i < offset + width; ++i){
+            dst[i] = Integer.rotateRight(dst[i], 8);
+        }
+    }
+
+    /**
+     * Copy an array in a row of pixels
+     * @param y (int) - Index of the row
+     * @param src (int[]) - ARGB pixels of the row
+     * @param offset (int) - Index in src of the first pixel of the row
+     * @throws IllegalStateException if the pixels are closed
+     * @throws AssertionError if the row is outside the image or src is too short
+     */
+    public void writeRow(int y, int[] src, int offset){
+        assert src != null && offset >= 0 && src.length - offset >= width;
+        var row = new int[width];
+        for (var i = 0; i < width; ++i){
+            row[i] = Integer.rotateLeft(src[offset + i], 8);
+        }
+        var stamp = open();
+        try {
+            block(y).put(position(y), row, 0, width);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Slow path : one lock for one pixel, prefer readRow to read many pixels
+     * @param x (int) - Column of the pixel
+     * @param y (int) - Row of the pixel
+     * @return (int) - The ARGB pixel
+     * @throws IllegalStateException if the pixels are closed
+     */
+    public int pixel(int x, int y){
+        assert x >= 0 && x < width;
+        var stamp = open();
+        try {
+            return Integer.rotateRight(block(y).get(position(y) + x), 8);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Slow path : one lock for one pixel, prefer writeRow to write many pixels
+     * @param x (int) - Column of the pixel
+     * @param y (int) - Row of the pixel
+     * @param pixel (int) - The new ARGB pixel
+     * @throws IllegalStateException if the pixels are closed
+     */
+    public void pixel(int x, int y, int pixel){
+        assert x >= 0 && x < width;
+        var stamp = open();
+        try {
+            block(y).put(position(y) + x, Integer.rotateLeft(pixel, 8));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte color_space(){
+        return color_space;
+    }
+
+    /**
+     * @return (boolean) - false once the pixels are closed
+     */
+    public boolean isOpen(){
+        var stamp = lock.readLock();
+        try {
+            return blocks != null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Release the memory of the pixels now, once the accesses in progress are over. Closing twice does nothing
+     * @apiNote On a JDK that does not allow it, the memory is released when the pixels are collected
+     */
+    @Override
+    public void close(){
+        ByteBuffer[] released;
+        var stamp = lock.writeLock();
+        try {
+            released = memory;
+            blocks = null;
+            memory = null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (released == null || INVOKE_CLEANER == null){
+            return;
+        }
+        for (var buffer : released){
+            if (buffer != null){
+                try {
+                    INVOKE_CLEANER.invokeExact(buffer);
+                } catch (Throwable e){
+                    // Left to the garbage collector
+                }
+            }
+        }
+    }
+
+    // ============================================================================================
+
+    /**
+     * Read lock the pixels for one access, to be unlocked by the caller
+     * @return (long) - Stamp of the read lock
+     * @throws IllegalStateException if the pixels are closed
+     */
+    private long open(){
+        var stamp = lock.readLock();
+        if (blocks == null){
+            lock.unlockRead(stamp);
+            throw new IllegalStateException("The pixels are closed");
+        }
+        return stamp;
+    }
+
+    /**
+     * Only to be used between open and the unlock, the block must not outlive the access
+     * @return (IntBuffer) - The block holding row y
+     */
+    private IntBuffer block(int y){
+        assert y >= 0 && y < height;
+        return blocks[y / blockRows];
+    }
+
+    /**
+     * @return (int) - Index of the first pixel of row y in its block
+     */
+    private int position(int y){
+        return y % blockRows * width;
+    }
+
+    /**
+     * @return (MethodHandle) - sun.misc.Unsafe::invokeCleaner bound to the instance of Unsafe, null if the JDK
+     * does not provide it or blocks the access to it : the memory is then left to the garbage collector
+     */
+    private static MethodHandle invokeCleaner(){
+        try {
+            var unsafe = Class.forName("sun.misc.Unsafe");
+            var field = unsafe.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafe, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e){
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,581 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming "Quite Ok Image" decoder. The file is read through a small buffer
+ * and handed out one row at a time, so that the memory used only depends on the width
+ * of the image and the first rows can be used while the next ones are still being read.
+ * A file on disk can also be mapped in memory, one window of at most 1 GiB at a time, which allows files
+ * and images bigger than a Java array. The chunks are then decoded straight from the windows, without being copied.
+ * @apiNote Pull the rows with readRow, or push them to a RowConsumer with decode
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIReader implements Closeable {
+
+    /**
+     * Size of the input buffer
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Maximal size of a window of a mapped file
+     */
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    /**
+     * Receives the rows of a decoded image
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+        /**
+         * @param y (int) - Index of the row
+         * @param row (int[]) - ARGB pixels of the row. The array is reused for the next row
+         * @throws IOException if the row cannot be processed
+         */
+        void accept(int y, int[] row) throws IOException;
+    }
+
+    private final ReadableByteChannel channel;
+
+    /**
+     * The mapped file, null when reading from a stream
+     */
+    private final FileChannel file;
+
+    /**
+     * Maximal size of a window of the mapped file
+     */
+    private final int windowSize;
+
+    /**
+     * Bytes read and not decoded yet, always backed by an array. Unused when the file is mapped
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+
+    /**
+     * Current window of the mapped file, null before the first one. It never holds the end marker
+     */
+    private ByteBuffer mapping;
+
+    /**
+     * Offset in the mapped file of the current window
+     */
+    private long window;
+
+    /**
+     * Offset in the mapped file of the next chunk to decode
+     */
+    private long next = QOISpecification.HEADER_SIZE;
+
+    /**
+     * Offset in the mapped file of the end marker, where the chunks end
+     */
+    private long dataEnd;
+
+    private final QOIDecoder.Cursor cursor = new QOIDecoder.Cursor();
+
+    private final int width;
+
+    private final int height;
+
+    private final byte channels;
+
+    private final byte colorSpace;
+
+    private int row;
+
+    /**
+     * Start reading a "Quite Ok Image" of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels : its header is read at once
+     * @param channel (ReadableByteChannel) - Where to read the file from
+     * @throws IOException if the header cannot be read, is not a "Quite Ok Image" header or the image is too big
+     * @throws AssertionError if the channel is null
+     */
+    public QOIReader(ReadableByteChannel channel) throws IOException {
+        this(channel, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Start reading a "Quite Ok Image" : its header is read and checked at once, before anything is allocated
+     * @param channel (ReadableByteChannel) - Where to read the file from
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @throws IOException if the header cannot be read, is not a "Quite Ok Image" header
+     * or the image has more than maxPixels pixels
+     * @throws AssertionError if the channel is null or maxPixels is not positive
+     */
+    public QOIReader(ReadableByteChannel channel, long maxPixels) throws IOException {
+        this(channel, null, WINDOW_SIZE, maxPixels);
+    }
+
+    private QOIReader(ReadableByteChannel channel, FileChannel file, int windowSize, long maxPixels) throws IOException {
+        assert channel != null;
+        // A window always holds a whole chunk
+        assert windowSize >= 5;
+        assert maxPixels > 0;
+        this.channel = channel;
+        this.file = file;
+        this.windowSize = windowSize;
+        var bytes = new byte[QOISpecification.HEADER_SIZE];
+        if (file == null ? !fill(bytes.length) : !read(bytes, 0)){
+            throw new EOFException("Truncated \"Quite Ok Image\" header");
+        }
+        if (file == null){
+            buffer.get(bytes);
+        } else {
+            dataEnd = file.size() - QOISpecification.QOI_EOF.length;
+        }
+        QOIDecoder.Header header;
+        try {
+            header = QOIDecoder.checkFields(bytes, maxPixels);
+        } catch (QOIFormatException e){
+            throw new IOException(e.getMessage(), e);
+        }
+        this.width = header.width();
+        this.height = header.height();
+        this.channels = header.channels();
+        this.colorSpace = header.color_space();
+    }
+
+    /**
+     * Start reading a "Quite Ok Image" from a stream
+     * @param input (InputStream) - Where to read the file from
+     * @throws IOException if the header cannot be read or is not a "Quite Ok Image" header
+     */
+    public QOIReader(InputStream input) throws IOException {
+        this(Channels.newChannel(input));
+    }
+
+    // ============================================================================================
+    // ==================================== READER API ============================================
+    // ============================================================================================
+
+    /**
+     * Start reading a "Quite Ok Image" of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels from a stream,
+     * extracting it on the fly if it is archived with QOIArchive
+     * @param input (InputStream) - Where to read the file from
+     * @return (QOIReader) - Reader of the file, closing the stream when it is closed
+     * @throws IOException if the header cannot be read, is not a "Quite Ok Image" header or the image is too big
+     */
+    public static QOIReader open(InputStream input) throws IOException {
+        return open(input, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Start reading a "Quite Ok Image" from a stream, extracting it on the fly if it is archived with QOIArchive
+     * @param input (InputStream) - Where to read the file from
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (QOIReader) - Reader of the file, closing the stream when it is closed
+     * @throws IOException if the header cannot be read, is not a "Quite Ok Image" header
+     * or the image has more than maxPixels pixels
+     */
+    public static QOIReader open(InputStream input, long maxPixels) throws IOException {
+        assert input != null;
+        var pushback = new PushbackInputStream(input, QOIArchive.MAGIC.length);
+        var magic = pushback.readNBytes(QOIArchive.MAGIC.length);
+        if (Arrays.equals(magic, QOIArchive.MAGIC)){
+            if (pushback.readNBytes(QOIArchive.HEADER_SIZE - magic.length).length != QOIArchive.HEADER_SIZE - magic.length){
+                throw new EOFException("Truncated archive of \"Quite Ok Image\" file");
+            }
+            return new QOIReader(Channels.newChannel(new InflaterInputStream(pushback)), maxPixels);
+        }
+        pushback.unread(magic);
+        return new QOIReader(Channels.newChannel(pushback), maxPixels);
+    }
+
+    /**
+     * Start reading a "Quite Ok Image" file of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels mapped in memory.
+     * A file archived with QOIArchive is not mapped but extracted on the fly, through a stream
+     * @param path (Path) - Path to the file
+     * @return (QOIReader) - Reader of the file, to be closed by the caller
+     * @throws IOException if the file cannot be mapped, is not a "Quite Ok Image" file or the image is too big
+     */
+    public static QOIReader map(Path path) throws IOException {
+        return map(path, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Start reading a "Quite Ok Image" file mapped in memory.
+     * A file archived with QOIArchive is not mapped but extracted on the fly, through a stream
+     * @param path (Path) - Path to the file
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (QOIReader) - Reader of the file, to be closed by the caller
+     * @throws IOException if the file cannot be mapped, is not a "Quite Ok Image" file
+     * or the image has more than maxPixels pixels
+     */
+    public static QOIReader map(Path path, long maxPixels) throws IOException {
+        return map(path, maxPixels, WINDOW_SIZE);
+    }
+
+    /**
+     * Same as map(path, maxPixels), with windows of at most windowSize bytes
+     */
+    static QOIReader map(Path path, long maxPixels, int windowSize) throws IOException {
+        assert path != null;
+        var file = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (isArchive(file)){
+                var input = new InflaterInputStream(Channels.newInputStream(file.position(QOIArchive.HEADER_SIZE)));
+                return new QOIReader(Channels.newChannel(input), maxPixels);
+            }
+            return new QOIReader(file, file, windowSize, maxPixels);
+        } catch (IOException | RuntimeException e){
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode a whole image of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels mapped in memory,
+     * handing each row to the consumer as soon as it is complete
+     * @param path (Path) - Path to the file
+     * @param consumer (RowConsumer) - Receives the rows, from the first to the last
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws IOException if the file cannot be read, is truncated, the image is too big or the consumer fails
+     */
+    public static int[] decode(Path path, RowConsumer consumer) throws IOException {
+        return decode(path, consumer, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Decode a whole image mapped in memory, handing each row to the consumer as soon as it is complete.
+     * The image may have more pixels than a Java array can hold
+     * @param path (Path) - Path to the file
+     * @param consumer (RowConsumer) - Receives the rows, from the first to the last
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws IOException if the file cannot be read, is truncated, the image has more than maxPixels pixels
+     * or the consumer fails
+     */
+    public static int[] decode(Path path, RowConsumer consumer, long maxPixels) throws IOException {
+        try (var reader = map(path, maxPixels)){
+            return reader.decode(consumer);
+        }
+    }
+
+    /**
+     * Decode a file of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels mapped in memory, storing the pixels in one array.
+     * Only a small buffer of the file is held in the heap at a time
+     * @param path (Path) - Path to the file
+     * @return (Helper.FlatImage) - Decoded image
+     * @throws IOException if the file cannot be read, is truncated or the image is too big
+     */
+    public static Helper.FlatImage readFlatImage(Path path) throws IOException {
+        var event = QOIEvent.start("QOIReader.readFlatImage");
+        try (var reader = map(path)){
+            var pixels = new int[Math.multiplyExact(reader.width, reader.height)];
+            for (var y = 0; y < reader.height; ++y){
+                reader.readRow(pixels, y * reader.width);
+            }
+            event.finish(reader.width, reader.height, reader.channels, Files.size(path));
+            return new Helper.FlatImage(pixels, reader.width, reader.height, reader.channels, reader.colorSpace);
+        }
+    }
+
+    /**
+     * Decode a file of at most QOIDecoder.DEFAULT_MAX_PIXELS pixels mapped in memory, storing the pixels off the heap
+     * @param path (Path) - Path to the file
+     * @return (QOIPixels) - Decoded pixels, to be closed by the caller
+     * @throws IOException if the file cannot be read, is truncated or the image is too big
+     */
+    public static QOIPixels readPixels(Path path) throws IOException {
+        return readPixels(path, QOIDecoder.DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Decode a file mapped in memory, storing the pixels off the heap.
+     * Only a small buffer of the file and one row of pixels are held in the heap, so the image may be bigger than a Java array
+     * @param path (Path) - Path to the file
+     * @param maxPixels (long) - Maximal number of pixels of the image
+     * @return (QOIPixels) - Decoded pixels, to be closed by the caller
+     * @throws IOException if the file cannot be read, is truncated or the image has more than maxPixels pixels
+     */
+    public static QOIPixels readPixels(Path path, long maxPixels) throws IOException {
+        var event = QOIEvent.start("QOIReader.readPixels");
+        try (var reader = map(path, maxPixels)){
+            var pixels = new QOIPixels(reader.width, reader.height, reader.channels, reader.colorSpace);
+            try {
+                var row = new int[reader.width];
+                for (var y = 0; y < reader.height; ++y){
+                    reader.readRow(row);
+                    pixels.writeRow(y, row, 0);
+                }
+            } catch (IOException | RuntimeException | Error e){
+                pixels.close();
+                throw e;
+            }
+            event.finish(reader.width, reader.height, reader.channels, Files.size(path));
+            return pixels;
+        }
+    }
+
+    /**
+     * Decode only some rows of a file mapped in memory. The reading stops as soon as
+     * the last requested row is complete, so the end of the file is never touched
+     * @param path (Path) - Path to the file
+     * @param firstRow (int) - Index of the first row to decode
+     * @param rowCount (int) - Number of rows to decode
+     * @return (Helper.FlatImage) - The requested rows, as an image of rowCount rows
+     * @throws IOException if the file cannot be read or is truncated
+     * @throws AssertionError if the range is outside the image
+     */
+    public static Helper.FlatImage readRows(Path path, int firstRow, int rowCount) throws IOException {
+        try (var reader = map(path)){
+            assert firstRow >= 0 && rowCount > 0 && (long) firstRow + rowCount <= reader.height;
+            reader.skipRows(firstRow);
+            var pixels = new int[Math.multiplyExact(reader.width, rowCount)];
+            for (var y = 0; y < rowCount; ++y){
+                reader.readRow(pixels, y * reader.width);
+            }
+            return new Helper.FlatImage(pixels, reader.width, rowCount, reader.channels, reader.colorSpace);
+        }
+    }
+
+    /**
+     * Decode a whole image, handing each row to the consumer as soon as it is complete
+     * @param channel (ReadableByteChannel) - Where to read the file from
+     * @param consumer (RowConsumer) - Receives the rows, from the first to the last
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws IOException if the file cannot be read, is truncated or the consumer fails
+     */
+    public static int[] decode(ReadableByteChannel channel, RowConsumer consumer) throws IOException {
+        return new QOIReader(channel).decode(consumer);
+    }
+
+    /**
+     * Decode the remaining rows, handing each row to the consumer as soon as it is complete
+     * @param consumer (RowConsumer) - Receives the rows
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws IOException if the file cannot be read, is truncated or the consumer fails
+     */
+    public int[] decode(RowConsumer consumer) throws IOException {
+        assert consumer != null;
+        var dst = new int[width];
+        while (readRow(dst)){
+            consumer.accept(row - 1, dst);
+        }
+        return new int[]{width, height, channels, colorSpace};
+    }
+
+    /**
+     * Decode the next row of the image
+     * @param dst (int[]) - Where to store the ARGB pixels of the row, at least width() long
+     * @return (boolean) - false if all the rows were already read (dst is then left untouched)
+     * @throws IOException if the file cannot be read or is truncated
+     */
+    public boolean readRow(int[] dst) throws IOException {
+        return readRow(dst, 0);
+    }
+
+    /**
+     * Decode the next row of the image
+     * @param dst (int[]) - Where to store the ARGB pixels of the row
+     * @param offset (int) - Index in dst of the first pixel of the row
+     * @return (boolean) - false if all the rows were already read (dst is then left untouched)
+     * @throws IOException if the file cannot be read, is truncated or the last row is not followed by the end marker
+     */
+    public boolean readRow(int[] dst, int offset) throws IOException {
+        assert dst != null && offset >= 0 && dst.length - offset >= width;
+        if (row == height){
+            return false;
+        }
+        if (file != null){
+            readMappedRow(dst, offset);
+        } else {
+            readStreamedRow(dst, offset);
+        }
+        if (++row == height){
+            checkEnd();
+        }
+        return true;
+    }
+
+    /**
+     * Decode the next row from the stream, through the buffer
+     */
+    private void readStreamedRow(int[] dst, int offset) throws IOException {
+        var done = 0;
+        while (done < width){
+            var before = cursor.pixel;
+            // The last bytes of the input may be the end marker : they are never decoded as chunks
+            var to = Math.max(buffer.position(), buffer.limit() - QOISpecification.QOI_EOF.length);
+            var next = QOIDecoder.decodePixels(buffer.array(), buffer.position(), to,
+                    cursor, dst, offset + done, width - done);
+            buffer.position(next);
+            done += (int) (cursor.pixel - before);
+            // A chunk is at most 5 bytes long : with fewer bytes left before the marker, more input may be needed
+            if (done < width && !fill(5 + QOISpecification.QOI_EOF.length) && cursor.pixel == before){
+                throw new EOFException("Truncated \"Quite Ok Image\" data at row " + row);
+            }
+        }
+    }
+
+    /**
+     * Decode the next row straight from the windows of the mapped file, sliding to the next window
+     * when the current one ends before a whole chunk
+     */
+    private void readMappedRow(int[] dst, int offset) throws IOException {
+        var done = 0;
+        while (true){
+            if (mapping != null){
+                var before = cursor.pixel;
+                var idx = QOIDecoder.decodePixels(mapping, (int) (next - window), mapping.limit(),
+                        cursor, dst, offset + done, width - done);
+                next = window + idx;
+                done += (int) (cursor.pixel - before);
+                if (done == width){
+                    return;
+                }
+            }
+            // The decoding stopped at the end of the window
+            if (mapping != null && window + mapping.limit() == dataEnd || next >= dataEnd){
+                throw new EOFException("Truncated \"Quite Ok Image\" data at row " + row);
+            }
+            mapping = file.map(FileChannel.MapMode.READ_ONLY, next, Math.min(windowSize, dataEnd - next));
+            window = next;
+        }
+    }
+
+    /**
+     * Decode the next rows without keeping them
+     * @param count (int) - Number of rows to skip
+     * @return (int) - Number of rows skipped, smaller than count if the end of the image is reached
+     * @throws IOException if the file cannot be read or is truncated
+     */
+    public int skipRows(int count) throws IOException {
+        assert count >= 0;
+        var skipped = 0;
+        var dst = new int[width];
+        while (skipped < count && readRow(dst)){
+            ++skipped;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (int) - Index of the next row to be read
+     */
+    public int row(){
+        return row;
+    }
+
+    /**
+     * Close the underlying channel
+     * @throws IOException if the channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // ============================================================================================
+
+    /**
+     * @return (boolean) - true if the file starts with the magic number of QOIArchive
+     */
+    private static boolean isArchive(FileChannel file) throws IOException {
+        var magic = ByteBuffer.allocate(QOIArchive.MAGIC.length);
+        int read;
+        do {
+            read = file.read(magic, magic.position());
+        } while (read > 0 && magic.hasRemaining());
+        return !magic.hasRemaining() && Arrays.equals(magic.array(), QOIArchive.MAGIC);
+    }
+
+    /**
+     * Check that the chunks of the last row are followed by the end marker, as QOIDecoder::decodeQoiFile does
+     * @throws IOException if the end marker is missing
+     */
+    private void checkEnd() throws IOException {
+        var marker = new byte[QOISpecification.QOI_EOF.length];
+        if (file != null){
+            read(marker, next);
+        } else if (fill(marker.length)){
+            buffer.get(marker);
+        }
+        if (!Arrays.equals(marker, QOISpecification.QOI_EOF)){
+            throw new IOException("Missing \"Quite Ok Image\" end marker after the last row");
+        }
+    }
+
+    /**
+     * Read from the stream until at least length bytes are available in the buffer or the stream is exhausted
+     * @return (boolean) - true if length bytes are available
+     */
+    private boolean fill(int length) throws IOException {
+        if (buffer.remaining() >= length){
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < length){
+                if (channel.read(buffer) < 0){
+                    break;
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return buffer.remaining() >= length;
+    }
+
+    /**
+     * Read a few bytes of the mapped file, without mapping them
+     * @param dst (byte[]) - Where to store the bytes, filled entirely
+     * @param position (long) - Offset in the file of the first byte
+     * @return (boolean) - false if the file ends before dst is full
+     */
+    private boolean read(byte[] dst, long position) throws IOException {
+        var bytes = ByteBuffer.wrap(dst);
+        while (bytes.hasRemaining()){
+            var read = file.read(bytes, position + bytes.position());
+            if (read < 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
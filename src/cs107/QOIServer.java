@@ -0,0 +1,407 @@
+package cs107;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded HTTP conversion service, so that other programs convert images without starting a JVM each time.
+ * <ul>
+ *     <li>POST /png2qoi : the body is an image in a standard format (png, jpeg ...), the response its "Quite Ok Image" file</li>
+ *     <li>POST /qoi2png : the body is a "Quite Ok Image" file, possibly archived, the response its "PNG" file</li>
+ *     <li>GET /stats : the counters of the service, as JSON</li>
+ * </ul>
+ * The bodies are decoded while they are received and the responses are encoded while they are sent,
+ * only the pixels of the image being held in memory.
+ * @apiNote Usage : java cs107.QOIServer [port] [threads], where threads = 0 (the default) means one virtual thread
+ * per request when the JVM supports them. The server only listens on the loopback address
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIServer implements AutoCloseable {
+
+    /**
+     * Port used when none is given
+     */
+    public static final int DEFAULT_PORT = 8107;
+
+    /**
+     * Requests waiting to be accepted by the server
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * Bytes of a body read after the image, or of a rejected body read before the answer.
+     * The request is rejected, or the connection reset, after more
+     */
+    private static final long DRAIN_LIMIT = 1L << 26;
+
+    /**
+     * Counters of a server
+     * @param requests (long) - number of conversions answered
+     * @param failures (long) - number of conversions rejected or failed
+     * @param active (int) - number of conversions in progress
+     * @param bytesIn (long) - total size of the received bodies
+     * @param bytesOut (long) - total size of the sent bodies
+     * @param pixels (long) - total number of converted pixels
+     * @param nanos (long) - total time spent in the conversions, in nanoseconds
+     * @param uptime (long) - time since the server started, in nanoseconds
+     */
+    public record Stats(long requests, long failures, int active, long bytesIn, long bytesOut,
+                        long pixels, long nanos, long uptime){
+
+        public double requestsPerSecond(){
+            return requests * 1e9 / Math.max(uptime, 1);
+        }
+
+        public double averageMillis(){
+            return requests + failures == 0 ? 0 : nanos / 1e6 / (requests + failures);
+        }
+
+        public String toJson(){
+            return String.format(Locale.ROOT,
+                    "{\"requests\":%d,\"failures\":%d,\"active\":%d,\"bytesIn\":%d,\"bytesOut\":%d,\"pixels\":%d,"
+                            + "\"averageMillis\":%.3f,\"requestsPerSecond\":%.3f,\"uptimeSeconds\":%.3f}",
+                    requests, failures, active, bytesIn, bytesOut, pixels, averageMillis(), requestsPerSecond(), uptime / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d requests (%d failed, %d active), %.1f requests/s, %.3f ms on average, %d bytes in, %d bytes out",
+                    requests, failures, active, requestsPerSecond(), averageMillis(), bytesIn, bytesOut);
+        }
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long maxPixels;
+
+    private final long started = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder pixels = new LongAdder();
+
+    private final LongAdder nanos = new LongAdder();
+
+    private QOIServer(HttpServer server, ExecutorService executor, long maxPixels){
+        this.server = server;
+        this.executor = executor;
+        this.maxPixels = maxPixels;
+        server.createContext("/png2qoi", exchange -> convert(exchange, true));
+        server.createContext("/qoi2png", exchange -> convert(exchange, false));
+        server.createContext("/stats", this::stats);
+        server.setExecutor(executor);
+    }
+
+    // ============================================================================================
+    // ==================================== SERVER API ============================================
+    // ============================================================================================
+
+    /**
+     * Entry point of the server
+     * @param args (String[]) - [port], [threads]
+     * @throws IOException if the server cannot be started
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2){
+            System.err.println("Usage : java cs107.QOIServer [port] [threads]");
+            System.exit(2);
+        }
+        var port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        var threads = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        var server = start(port, threads, QOIDecoder.DEFAULT_MAX_PIXELS);
+        System.out.printf("Listening on http://localhost:%d/ (POST /png2qoi, POST /qoi2png, GET /stats)%n", server.port());
+    }
+
+    /**
+     * Start a server on the loopback address
+     * @param port (int) - Port to listen to, 0 for any free port
+     * @param threads (int) - Number of threads, 0 for one virtual thread per request when available
+     * @param maxPixels (long) - Maximal number of pixels of an image, bigger images being rejected
+     * @return (QOIServer) - The running server, to be closed by the caller
+     * @throws IOException if the server cannot be started
+     * @throws AssertionError if one of the parameters is invalid
+     */
+    public static QOIServer start(int port, int threads, long maxPixels) throws IOException {
+        assert port >= 0 && port <= 0xFF_FF;
+        assert threads >= 0;
+        assert maxPixels > 0;
+        var server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        var executor = Helper.newExecutor(threads);
+        var running = new QOIServer(server, executor, maxPixels);
+        server.start();
+        return running;
+    }
+
+    /**
+     * @return (int) - The port the server listens to
+     */
+    public int port(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return (Stats) - The counters of the server
+     */
+    public Stats stats(){
+        return new Stats(requests.sum(), failures.sum(), active.get(), bytesIn.sum(), bytesOut.sum(),
+                pixels.sum(), nanos.sum(), System.nanoTime() - started);
+    }
+
+    /**
+     * Stop the server, the conversions in progress being interrupted
+     */
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // ============================================================================================
+
+    /**
+     * Rejected request, answered with the given status
+     */
+    private static final class Rejection extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        Rejection(int status, String message){
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Convert the body of the request and send the result back
+     */
+    private void convert(HttpExchange exchange, boolean toQoi) throws IOException {
+        var start = System.nanoTime();
+        var aborted = false;
+        active.incrementAndGet();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())){
+                exchange.getResponseHeaders().set("Allow", "POST");
+                throw new Rejection(405, "Use POST");
+            }
+            var input = new CountingInputStream(exchange.getRequestBody());
+            var image = toQoi ? readImage(input) : readQoi(input);
+            if (!drain(input)){
+                throw new Rejection(413, String.format(Locale.ROOT, "More than %d bytes after the image", DRAIN_LIMIT));
+            }
+            bytesIn.add(input.count);
+
+            exchange.getResponseHeaders().set("Content-Type", toQoi ? "image/qoi" : "image/png");
+            // Length 0 : the response is sent in chunks, as it is encoded
+            exchange.sendResponseHeaders(200, 0);
+            var output = new CountingOutputStream(exchange.getResponseBody());
+            if (toQoi){
+                QOIEncoder.qoiFile(image, Channels.newChannel(output));
+            } else {
+                Helper.writePng(Helper.toBufferedImage(image), output);
+            }
+            output.flush();
+            bytesOut.add(output.count);
+            pixels.add((long) image.width() * image.height());
+            requests.increment();
+        } catch (Rejection e){
+            failures.increment();
+            reject(exchange, e.status, e.getMessage());
+        } catch (Throwable e){
+            // Every failed conversion is counted, errors such as OutOfMemoryError included
+            failures.increment();
+            if (exchange.getResponseCode() != -1){
+                // Closing the exchange would end the chunked body as if it were complete :
+                // the exception makes the server drop the connection instead
+                aborted = true;
+                throw e;
+            }
+            reject(exchange, 500, String.valueOf(e.getMessage()));
+        } finally {
+            if (!aborted){
+                exchange.close();
+            }
+            active.decrementAndGet();
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decode an image in a standard format, its size being checked before its pixels are decoded
+     */
+    private Helper.FlatImage readImage(InputStream input) throws Rejection {
+        try (var stream = new MemoryCacheImageInputStream(input)){
+            return Helper.toFlatImage(Helper.readImage(stream, Math.min(maxPixels, Integer.MAX_VALUE - 8)));
+        } catch (Helper.ImageSizeException e){
+            throw new Rejection(413, e.getMessage());
+        } catch (IOException e){
+            throw new Rejection(400, e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file row after row, as it is received
+     */
+    private Helper.FlatImage readQoi(InputStream input) throws IOException, Rejection {
+        QOIReader reader;
+        try {
+            // The size is checked below, to answer 413 rather than 400
+            reader = QOIReader.open(input, Long.MAX_VALUE);
+        } catch (IOException e){
+            throw new Rejection(400, e.getMessage());
+        }
+        checkSize(reader.width(), reader.height());
+        var width = reader.width();
+        var data = new int[width * reader.height()];
+        try {
+            for (var y = 0; y < reader.height(); ++y){
+                reader.readRow(data, y * width);
+            }
+        } catch (IOException e){
+            throw new Rejection(400, e.getMessage());
+        }
+        return new Helper.FlatImage(data, width, reader.height(), reader.channels(), reader.colorSpace());
+    }
+
+    /**
+     * Reject the images with no pixel or more than maxPixels pixels
+     */
+    private void checkSize(int width, int height) throws Rejection {
+        var count = Integer.toUnsignedLong(width) * Integer.toUnsignedLong(height);
+        if (count == 0 || count > Math.min(maxPixels, Integer.MAX_VALUE - 8)){
+            throw new Rejection(413, String.format(Locale.ROOT, "Image of %sx%s pixels, at most %d allowed",
+                    Integer.toUnsignedString(width), Integer.toUnsignedString(height), maxPixels));
+        }
+    }
+
+    /**
+     * Answer with an error, unless the response has already started
+     */
+    private static void reject(HttpExchange exchange, int status, String message){
+        if (exchange.getResponseCode() != -1){
+            return;
+        }
+        try {
+            // The client may still be sending the body : it is read so that it gets the answer
+            drain(exchange.getRequestBody());
+            var body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException e){
+            // The client is gone
+        }
+    }
+
+    /**
+     * Read what is left of a body, at most DRAIN_LIMIT bytes
+     * @return (boolean) - true if the whole body was read
+     */
+    private static boolean drain(InputStream input) throws IOException {
+        var chunk = new byte[1 << 13];
+        var drained = 0L;
+        for (int read; (read = input.read(chunk, 0, (int) Math.min(chunk.length, DRAIN_LIMIT + 1 - drained))) >= 0; ){
+            drained += read;
+            if (drained > DRAIN_LIMIT){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send the counters of the server
+     */
+    private void stats(HttpExchange exchange) throws IOException {
+        try (exchange){
+            var body = stats().toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    /**
+     * Count the bytes read through a stream
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream input){
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if (b >= 0){
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var read = super.read(b, off, len);
+            if (read > 0){
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Count the bytes written through a stream
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream output){
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -136,4 +136,45 @@ public final class QOISpecification {
         return (byte) (tmp < 0 ? tmp + 64 : tmp);
     }
 
+    /**
+     * Hash a given packed ARGB pixel using the hash function specific to "Quite Ok Image" format
+     * @apiNote Gives the same result as hash(byte[]) on the corresponding channels :
+     * signed and unsigned channels differ by multiples of 256, which vanish modulo 64
+     * @param pixel (int) - ARGB pixel to hash
+     * @return (int) - hash of the pixel
+     */
+    public static int hash(int pixel){
+        var tmp = ((pixel >> 16) & 0xFF) * 3 + ((pixel >> 8) & 0xFF) * 5 + (pixel & 0xFF) * 7 + (pixel >>> 24) * 11;
+        return tmp & 0b11_11_11;
+    }
+
+    // ==================================================================================
+    // ========================= Channel Arithmetic on ARGB Pixels ======================
+    // ==================================================================================
+
+    /**
+     * Bits of the highest bit of each channel of an ARGB integer
+     */
+    private static final int HIGH_BITS = 0x80_80_80_80;
+
+    /**
+     * Add the channels of two ARGB pixels one by one, each channel wrapping around modulo 256
+     * @param x (int) - First ARGB pixel
+     * @param y (int) - Second ARGB pixel
+     * @return (int) - Channel by channel sum
+     */
+    static int addChannels(int x, int y){
+        return ((x & ~HIGH_BITS) + (y & ~HIGH_BITS)) ^ ((x ^ y) & HIGH_BITS);
+    }
+
+    /**
+     * Subtract the channels of two ARGB pixels one by one, each channel wrapping around modulo 256
+     * @param x (int) - First ARGB pixel
+     * @param y (int) - Second ARGB pixel
+     * @return (int) - Channel by channel difference x - y
+     */
+    static int subChannels(int x, int y){
+        return ((x | HIGH_BITS) - (y & ~HIGH_BITS)) ^ ((x ^ ~y) & HIGH_BITS);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+package cs107;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Statistics of "Quite Ok Image" encodings : how many chunks of each kind, how many bytes they take,
+ * how well the hash table of QOISpecification::hash works and how fast the encoder and decoder run.
+ * The counters add up over all the encodings and decodings recorded in the same object.
+ * @apiNote The statistics are gathered from the chunks once they are encoded (or before they are decoded),
+ * so the encoder and the decoder run exactly the same code with or without statistics
+ * @author Hamza REMMAL (hamza.remmal@epfl.ch)
+ * @version 1.2
+ * @since 1.2
+ */
+public final class QOIStats {
+
+    /**
+     * Kinds of chunks
+     */
+    public enum Op {
+        RUN, INDEX, DIFF, LUMA, RGB, RGBA
+    }
+
+    private final long[] counts = new long[Op.values().length];
+
+    private final long[] bytes = new long[Op.values().length];
+
+    private long pixels;
+
+    /**
+     * Pixels looked up in the hash table : the ones not encoded in a QOI_OP_RUN
+     */
+    private long lookups;
+
+    /**
+     * Lookups that found another pixel in their slot of the hash table
+     */
+    private long collisions;
+
+    private long nanos;
+
+    // ============================================================================================
+    // ==================================== STATS API =============================================
+    // ============================================================================================
+
+    /**
+     * @param op (Op) - Kind of chunk
+     * @return (long) - Number of chunks of that kind
+     */
+    public long count(Op op){
+        return counts[op.ordinal()];
+    }
+
+    /**
+     * @param op (Op) - Kind of chunk
+     * @return (long) - Number of bytes taken by the chunks of that kind
+     */
+    public long bytes(Op op){
+        return bytes[op.ordinal()];
+    }
+
+    /**
+     * @return (long) - Number of bytes of all the chunks
+     */
+    public long bytes(){
+        var total = 0L;
+        for (var b : bytes){
+            total += b;
+        }
+        return total;
+    }
+
+    /**
+     * @return (long) - Number of encoded or decoded pixels
+     */
+    public long pixels(){
+        return pixels;
+    }
+
+    /**
+     * @return (double) - Share of the pixels out of a run found in the hash table
+     */
+    public double hitRate(){
+        return lookups == 0 ? 0 : (double) count(Op.INDEX) / lookups;
+    }
+
+    /**
+     * @return (double) - Share of the pixels out of a run whose slot of the hash table held another pixel
+     */
+    public double collisionRate(){
+        return lookups == 0 ? 0 : (double) collisions / lookups;
+    }
+
+    /**
+     * @return (double) - Average number of pixels of a QOI_OP_RUN
+     */
+    public double averageRun(){
+        return count(Op.RUN) == 0 ? 0 : (double) (pixels - lookups) / count(Op.RUN);
+    }
+
+    /**
+     * @return (double) - Number of pixels encoded or decoded per second
+     */
+    public double pixelsPerSecond(){
+        return nanos == 0 ? 0 : pixels * 1e9 / nanos;
+    }
+
+    /**
+     * @return (double) - Number of bytes of chunks produced or read per second
+     */
+    public double bytesPerSecond(){
+        return nanos == 0 ? 0 : bytes() * 1e9 / nanos;
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset(){
+        Arrays.fill(counts, 0);
+        Arrays.fill(bytes, 0);
+        pixels = lookups = collisions = nanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        for (var op : Op.values()){
+            builder.append(String.format(Locale.ROOT, "%-5s %12d chunks %12d bytes (%5.1f%%)%n",
+                    op, count(op), bytes(op), 100d * bytes(op) / Math.max(1, bytes())));
+        }
+        builder.append(String.format(Locale.ROOT,
+                "%d pixels, index hits %.1f%%, collisions %.1f%%, average run %.1f, %.1f Mpx/s, %.1f MB/s",
+                pixels, 100 * hitRate(), 100 * collisionRate(), averageRun(), pixelsPerSecond() / 1e6, bytesPerSecond() / 1e6));
+        return builder.toString();
+    }
+
+    // ============================================================================================
+
+    /**
+     * Record the chunks of data[from, to), replaying them with the pixel arithmetic of QOIDecoder to follow the hash table
+     * @param data (byte[]) - Chunks, without header nor EOF
+     * @param nanos (long) - Time spent encoding or decoding them
+     * @throws QOIFormatException if the last chunk does not end before to
+     */
+    void record(byte[] data, int from, int to, long nanos){
+        var index = new int[64];
+        var filled = 0L;
+        var previous = 0xFF_00_00_00;
+        var idx = from;
+        while (idx < to){
+            var op = data[idx] & 0xFF;
+            Op kind;
+            if (op == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)){
+                kind = Op.RGB;
+            } else if (op == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)){
+                kind = Op.RGBA;
+            } else {
+                kind = switch (op >> 6){
+                    case 0 -> Op.INDEX;
+                    case 1 -> Op.DIFF;
+                    case 2 -> Op.LUMA;
+                    default -> Op.RUN;
+                };
+            }
+            var length = switch (kind){
+                case RGB -> 4;
+                case RGBA -> 5;
+                case LUMA -> 2;
+                default -> 1;
+            };
+            if (idx + length > to){
+                throw new QOIFormatException(String.format(Locale.ROOT,
+                        "Truncated %s chunk at %d, the chunks end at %d", kind, idx, to));
+            }
+            var pixel = switch (kind){
+                case RGB -> QOIDecoder.rgb(previous, data[idx + 1], data[idx + 2], data[idx + 3]);
+                case RGBA -> QOIDecoder.rgba(data[idx + 1], data[idx + 2], data[idx + 3], data[idx + 4]);
+                case INDEX -> index[op];
+                case DIFF -> QOIDecoder.diff(previous, op);
+                case LUMA -> QOIDecoder.luma(previous, op, data[idx + 1]);
+                case RUN -> previous;
+            };
+            counts[kind.ordinal()] += 1;
+            bytes[kind.ordinal()] += length;
+            idx += length;
+            if (kind == Op.RUN){
+                pixels += (op & 0b11_11_11) + 1;
+                continue;
+            }
+
+            ++pixels;
+            ++lookups;
+            var hash = QOISpecification.hash(pixel);
+            if (kind != Op.INDEX){
+                if ((filled & (1L << hash)) != 0){
+                    ++collisions;
+                }
+                filled |= 1L << hash;
+                index[hash] = pixel;
+            }
+            previous = pixel;
+        }
+        this.nanos += nanos;
+    }
+
+}